@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Constants and primitives of the {@code AEAD_AES_256_CBC_HMAC_SHA512} encryption result format,
+ * shared by the classes that produce or check it outside {@link AeadAes256CbcHmacSha512Provider}.
+ * <p>
+ * The 64-byte key is split as in the AEAD_AES_CBC_HMAC_SHA2 construction: the first 32 bytes
+ * are the MAC key and the last 32 bytes the AES key. The ciphertext attribute holds
+ * {@code IV || C || T}, where {@code C} is AES-CBC with PKCS#7 padding and {@code T} is the
+ * first 32 bytes of {@code HMAC-SHA512(MAC key, A || IV || C || AL)} with empty associated data {@code A}.
+ */
+class AeadAes256CbcHmacSha512Format {
+    static final String ALGORITHM = "AEAD_AES_256_CBC_HMAC_SHA512";
+
+    static final int KEY_LENGTH = 64;
+    static final int MAC_KEY_LENGTH = 32;
+    static final int BLOCK_SIZE = 16;
+    static final int TAG_LENGTH = 32;
+    // 64-bit big-endian bit length of the (empty) associated data
+    static final byte[] ASSOCIATED_DATA_LENGTH = new byte[8];
+
+    private AeadAes256CbcHmacSha512Format() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * Decodes the ciphertext attribute, or returns null if it is not valid Base64 or
+     * cannot be {@code IV || C || T} with at least one cipher block.
+     */
+    static byte[] decodeCiphertext(String ciphertext) {
+        byte[] decoded;
+        try {
+            decoded = Base64.getDecoder().decode(ciphertext);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int cipherLength = decoded.length - BLOCK_SIZE - TAG_LENGTH;
+        if (cipherLength < BLOCK_SIZE || cipherLength % BLOCK_SIZE != 0) {
+            return null;
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns an HmacSHA512 Mac initialised with the MAC half of the key.
+     */
+    static Mac newMac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA512");
+            mac.init(new SecretKeySpec(key, 0, MAC_KEY_LENGTH, "HmacSHA512"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA512 is not available", e);
+        }
+    }
+
+    /**
+     * Returns the AES half of the key.
+     */
+    static SecretKeySpec aesKey(byte[] key) {
+        return new SecretKeySpec(key, MAC_KEY_LENGTH, KEY_LENGTH - MAC_KEY_LENGTH, "AES");
+    }
+
+    /**
+     * Computes the tag over {@code IV || C} with the given initialised MAC and compares it
+     * in constant time with the trailing tag. The MAC is left reset.
+     */
+    static boolean tagMatches(Mac mac, byte[] ivCiphertextTag) {
+        int tagOffset = ivCiphertextTag.length - TAG_LENGTH;
+        mac.update(ivCiphertextTag, 0, tagOffset);
+        mac.update(ASSOCIATED_DATA_LENGTH);
+        byte[] expected = Arrays.copyOf(mac.doFinal(), TAG_LENGTH);
+        byte[] actual = Arrays.copyOfRange(ivCiphertextTag, tagOffset, ivCiphertextTag.length);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Decrypts the last cipher block with an AES/ECB cipher initialised with {@link #aesKey}
+     * and checks its PKCS#7 padding.
+     */
+    static boolean paddingValid(Cipher lastBlockCipher, byte[] ivCiphertextTag) {
+        int lastBlock = ivCiphertextTag.length - TAG_LENGTH - BLOCK_SIZE;
+        int previousBlock = lastBlock - BLOCK_SIZE;
+        byte[] block;
+        try {
+            block = lastBlockCipher.doFinal(ivCiphertextTag, lastBlock, BLOCK_SIZE);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+        int padding = (block[BLOCK_SIZE - 1] ^ ivCiphertextTag[previousBlock + BLOCK_SIZE - 1]) & 0xff;
+        if (padding < 1 || padding > BLOCK_SIZE) {
+            return false;
+        }
+        int mismatch = 0;
+        for (int i = BLOCK_SIZE - padding; i < BLOCK_SIZE; i++) {
+            mismatch |= (block[i] ^ ivCiphertextTag[previousBlock + i] ^ padding) & 0xff;
+        }
+        return mismatch == 0;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.KEY_LENGTH;
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.aesKey;
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.decodeCiphertext;
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.newMac;
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.paddingValid;
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.tagMatches;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Checks {@code AEAD_AES_256_CBC_HMAC_SHA512} encryption results without decrypting them.
+ * See {@link AeadAes256CbcHmacSha512Format} for the layout.
+ * <p>
+ * Besides the tag, only the last cipher block is decrypted, to check its PKCS#7 padding, so a
+ * result is {@code VALID} exactly when the provider's decrypter would accept it.
+ * {@link #verifyAll} resolves each kid and prepares its Mac once per batch, and can split
+ * large batches across a fork-join pool.
+ */
+public class AeadEnvelopeVerifier {
+    public static final String ALGORITHM = AeadAes256CbcHmacSha512Format.ALGORITHM;
+
+    static final int PARALLEL_THRESHOLD = 256;
+
+    public enum Result {
+        VALID,
+        MISSING_ALGORITHM,
+        MISSING_KID,
+        MISSING_CIPHERTEXT,
+        UNSUPPORTED_ALGORITHM,
+        UNKNOWN_KID,
+        INVALID_KEY,
+        MALFORMED_CIPHERTEXT,
+        AUTHENTICATION_FAILED,
+        INVALID_PADDING,
+        /**
+         * The keyring threw while looking up the kid, for example because it is unavailable.
+         */
+        KEYRING_ERROR
+    }
+
+    private final Keyring keyring;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a verifier that runs batches on the calling thread.
+     */
+    public AeadEnvelopeVerifier(Keyring keyring) {
+        this.keyring = requireNonNull(keyring);
+        this.pool = null;
+    }
+
+    /**
+     * Creates a verifier that splits batches of at least {@value #PARALLEL_THRESHOLD}
+     * results across the given pool.
+     */
+    public AeadEnvelopeVerifier(Keyring keyring, ForkJoinPool pool) {
+        this.keyring = requireNonNull(keyring);
+        this.pool = requireNonNull(pool);
+    }
+
+    /**
+     * Checks that the encryption result is well formed and that its tag authenticates
+     * under the key named by its "kid" attribute.
+     */
+    public Result verify(Map<String, Object> encrypted) {
+        return verifyAll(Collections.singletonList(encrypted)).get(0);
+    }
+
+    /**
+     * Checks every encryption result, returning the results in the same order.
+     */
+    public List<Result> verifyAll(List<? extends Map<String, Object>> encrypted) {
+        int count = encrypted.size();
+        Result[] results = new Result[count];
+        Map<String, PreparedKey> keys = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> e = encrypted.get(i);
+            results[i] = checkAttributes(e);
+            if (results[i] == null) {
+                keys.computeIfAbsent((String) e.get("kid"), this::prepare);
+            }
+        }
+
+        ParallelChunks.forEachChunk(pool, PARALLEL_THRESHOLD, count,
+            (from, to) -> verifyRange(encrypted, keys, results, from, to));
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Returns the failure for a result with missing or unsupported attributes, or null.
+     */
+    private static Result checkAttributes(Map<String, Object> encrypted) {
+        Object alg = encrypted.get("alg");
+        if (!(alg instanceof String)) {
+            return Result.MISSING_ALGORITHM;
+        }
+        if (!ALGORITHM.equals(alg)) {
+            return Result.UNSUPPORTED_ALGORITHM;
+        }
+        if (!(encrypted.get("kid") instanceof String)) {
+            return Result.MISSING_KID;
+        }
+        if (!(encrypted.get("ciphertext") instanceof String)) {
+            return Result.MISSING_CIPHERTEXT;
+        }
+        return null;
+    }
+
+    private PreparedKey prepare(String kid) {
+        Optional<Keyring.Key> key;
+        try {
+            key = keyring.get(kid);
+        } catch (RuntimeException e) {
+            // Fails only the results for this kid, as the decrypter would
+            return new PreparedKey(Result.KEYRING_ERROR, null);
+        }
+        if (!key.isPresent()) {
+            return new PreparedKey(Result.UNKNOWN_KID, null);
+        }
+        if (key.get().bytes().length != KEY_LENGTH) {
+            return new PreparedKey(Result.INVALID_KEY, null);
+        }
+        return new PreparedKey(null, key.get().bytes());
+    }
+
+    private static void verifyRange(List<? extends Map<String, Object>> encrypted, Map<String, PreparedKey> keys,
+                                    Result[] results, int from, int to) {
+        Map<String, KeyVerifier> verifiers = new HashMap<>();
+        for (int i = from; i < to; i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            Map<String, Object> e = encrypted.get(i);
+            String kid = (String) e.get("kid");
+            PreparedKey key = keys.get(kid);
+            if (key.failure != null) {
+                results[i] = key.failure;
+                continue;
+            }
+            byte[] decoded = decodeCiphertext((String) e.get("ciphertext"));
+            results[i] = decoded == null
+                ? Result.MALFORMED_CIPHERTEXT
+                : verifiers.computeIfAbsent(kid, k -> key.newVerifier()).verify(decoded);
+        }
+    }
+
+    /**
+     * A kid resolved once per batch: either the reason it cannot be used, or its key bytes
+     * and a Mac initialised with them that each chunk copies.
+     */
+    private static class PreparedKey {
+        private final Result failure;
+        private final byte[] key;
+        private final Mac prototype;
+
+        PreparedKey(Result failure, byte[] key) {
+            this.failure = failure;
+            this.key = key;
+            this.prototype = key == null ? null : newMac(key);
+        }
+
+        KeyVerifier newVerifier() {
+            Mac mac;
+            try {
+                synchronized (prototype) {
+                    mac = (Mac) prototype.clone();
+                }
+            } catch (CloneNotSupportedException e) {
+                mac = newMac(key);
+            }
+            try {
+                Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, aesKey(key));
+                return new KeyVerifier(mac, cipher);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/ECB/NoPadding is not available", e);
+            }
+        }
+    }
+
+    /**
+     * Verifies results for one key on one thread.
+     */
+    private static class KeyVerifier {
+        private final Mac mac;
+        private final Cipher lastBlockCipher;
+
+        KeyVerifier(Mac mac, Cipher lastBlockCipher) {
+            this.mac = mac;
+            this.lastBlockCipher = lastBlockCipher;
+        }
+
+        Result verify(byte[] ivCiphertextTag) {
+            if (!tagMatches(mac, ivCiphertextTag)) {
+                return Result.AUTHENTICATION_FAILED;
+            }
+            return paddingValid(lastBlockCipher, ivCiphertextTag) ? Result.VALID : Result.INVALID_PADDING;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.couchbase.client.encryption.AeadEnvelopeVerifier.Result.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AeadEnvelopeVerifierTest {
+    private final byte[] key = EncryptionTestHelper.keyring().getOrThrow("test-key").bytes();
+    private final CryptoManager cryptoManager;
+
+    public AeadEnvelopeVerifierTest() {
+        AeadAes256CbcHmacSha512Provider provider = EncryptionTestHelper.provider();
+        cryptoManager = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey("test-key"))
+            .build();
+    }
+
+    private Map<String, Object> encrypt(int i) {
+        char[] value = new char[i % 40];
+        Arrays.fill(value, 'x');
+        return new HashMap<>(cryptoManager.encrypt(("\"" + new String(value) + "\"").getBytes(UTF_8), null));
+    }
+
+    /**
+     * Builds a result whose tag is valid but whose single cipher block decrypts to the given bytes.
+     */
+    private Map<String, Object> withLastBlock(byte[] plaintextBlock) throws Exception {
+        byte[] iv = new byte[16];
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 32, 32, "AES"), new IvParameterSpec(iv));
+        byte[] ivCiphertext = new byte[16 + 16];
+        cipher.doFinal(plaintextBlock, 0, 16, ivCiphertext, 16);
+
+        byte[] ivCiphertextTag = Arrays.copyOf(ivCiphertext, ivCiphertext.length + 32);
+        byte[] tag = AeadAes256CbcHmacSha512Format.newMac(key).doFinal(Arrays.copyOf(ivCiphertext, ivCiphertext.length + 8));
+        System.arraycopy(tag, 0, ivCiphertextTag, ivCiphertext.length, 32);
+
+        Map<String, Object> encrypted = new HashMap<>();
+        encrypted.put("alg", AeadEnvelopeVerifier.ALGORITHM);
+        encrypted.put("kid", "test-key");
+        encrypted.put("ciphertext", Base64.getEncoder().encodeToString(ivCiphertextTag));
+        return encrypted;
+    }
+
+    /**
+     * Flips a bit of the decoded ciphertext at the given index; negative indexes count from the end.
+     */
+    private static void flip(Map<String, Object> encrypted, int index) {
+        byte[] decoded = Base64.getDecoder().decode((String) encrypted.get("ciphertext"));
+        decoded[index < 0 ? decoded.length + index : index] ^= 1;
+        encrypted.put("ciphertext", Base64.getEncoder().encodeToString(decoded));
+    }
+
+    private boolean decrypterAccepts(Map<String, Object> encrypted) {
+        try {
+            cryptoManager.decrypt(encrypted);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    @Test
+    void sameDecisionsAsDecrypter() throws Exception {
+        List<Map<String, Object>> batch = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            Map<String, Object> encrypted = encrypt(i);
+            switch (i % 8) {
+                case 1:
+                    flip(encrypted, -1); // tag
+                    break;
+                case 2:
+                    flip(encrypted, -40); // last cipher block
+                    break;
+                case 3:
+                    flip(encrypted, 0); // IV
+                    break;
+                case 4:
+                    String ciphertext = (String) encrypted.get("ciphertext");
+                    encrypted.put("ciphertext", ciphertext.substring(0, ciphertext.length() - 24));
+                    break;
+                case 5:
+                    encrypted.put("kid", "unknown-key");
+                    break;
+                case 6:
+                    byte[] block = new byte[16];
+                    block[15] = (byte) ((i / 8) % 2 == 0 ? 0 : 17);
+                    encrypted = withLastBlock(block);
+                    break;
+                case 7:
+                    byte[] padded = new byte[16];
+                    Arrays.fill(padded, 13, 16, (byte) 3);
+                    padded[13] = (byte) ((i / 8) % 2 == 0 ? 2 : 3); // 3 3 3 is valid padding
+                    encrypted = withLastBlock(padded);
+                    break;
+                default:
+                    break;
+            }
+            batch.add(encrypted);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<AeadEnvelopeVerifier.Result> results = new AeadEnvelopeVerifier(EncryptionTestHelper.keyring(), pool).verifyAll(batch);
+            assertEquals(results, new AeadEnvelopeVerifier(EncryptionTestHelper.keyring()).verifyAll(batch));
+            for (int i = 0; i < batch.size(); i++) {
+                assertEquals(decrypterAccepts(batch.get(i)), results.get(i) == VALID, "envelope " + i + " was " + results.get(i));
+            }
+            assertEquals(VALID, results.get(0));
+            assertEquals(AUTHENTICATION_FAILED, results.get(1));
+            assertEquals(UNKNOWN_KID, results.get(5));
+            assertEquals(INVALID_PADDING, results.get(6));
+            assertEquals(INVALID_PADDING, results.get(7));
+            assertEquals(VALID, results.get(15));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void keyringErrorsFailOnlyTheirKid() {
+        Keyring flakyKeyring = keyId -> {
+            if (keyId.equals("broken-key")) {
+                throw new IllegalStateException("Failed to unwrap crypto key 'broken-key'");
+            }
+            return EncryptionTestHelper.keyring().get(keyId);
+        };
+        AeadAes256CbcHmacSha512Provider provider = AeadAes256CbcHmacSha512Provider.builder()
+            .keyring(flakyKeyring)
+            .build();
+        CryptoManager flakyCryptoManager = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .build();
+
+        Map<String, Object> broken = encrypt(1);
+        broken.put("kid", "broken-key");
+        List<Map<String, Object>> batch = Arrays.asList(encrypt(0), broken, encrypt(2));
+
+        assertEquals(Arrays.asList(VALID, KEYRING_ERROR, VALID), new AeadEnvelopeVerifier(flakyKeyring).verifyAll(batch));
+        assertThrows(RuntimeException.class, () -> flakyCryptoManager.decrypt(broken));
+        assertArrayEquals(flakyCryptoManager.decrypt(batch.get(0)), cryptoManager.decrypt(batch.get(0)));
+    }
+
+    @Test
+    void resolvesEachKidOncePerBatch() {
+        AtomicInteger lookups = new AtomicInteger();
+        Keyring countingKeyring = keyId -> {
+            lookups.incrementAndGet();
+            return EncryptionTestHelper.keyring().get(keyId);
+        };
+
+        List<Map<String, Object>> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> encrypted = encrypt(i);
+            if (i % 10 == 0) {
+                encrypted.put("kid", "unknown-key");
+            }
+            batch.add(encrypted);
+        }
+        List<AeadEnvelopeVerifier.Result> results = new AeadEnvelopeVerifier(countingKeyring).verifyAll(batch);
+
+        assertEquals(2, lookups.get());
+        assertEquals(90, results.stream().filter(result -> result == VALID).count());
+        assertEquals(10, results.stream().filter(result -> result == UNKNOWN_KID).count());
+    }
+}
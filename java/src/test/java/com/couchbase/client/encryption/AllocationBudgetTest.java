@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.json.JsonObjectCrypto;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Fails when the bytes allocated per encrypt/decrypt operation exceed the baselines in
+ * {@code allocation-budgets.properties} by more than the configured headroom. Every test also
+ * fails when a baseline is missing, or when the couchbase-encryption or java-client version
+ * pinned in pom.xml differs from the one the baselines were measured with.
+ * Set {@code -Dallocation.report=true} to print a recalibrated file instead.
+ */
+class AllocationBudgetTest {
+    private static final String BUDGETS = "/allocation-budgets.properties";
+    private static final String PINNED_VERSIONS = "/pinned-versions.properties";
+    private static final String[] LIBRARIES = {"couchbase-encryption", "java-client"};
+    private static final int WARMUP_BYTES = 8 * 1024 * 1024;
+    private static final boolean REPORT = Boolean.getBoolean("allocation.report");
+
+    private static com.sun.management.ThreadMXBean threadBean;
+    private static Properties budgets;
+
+    private final CryptoManager cryptoManager = DefaultCryptoManager.builder()
+        .decrypter(EncryptionTestHelper.provider().decrypter())
+        .defaultEncrypter(EncryptionTestHelper.provider().encrypterForKey("test-key"))
+        .build();
+
+    @BeforeAll
+    static void setup() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "allocated-bytes counters are not available");
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported(), "allocated-bytes counters are not supported");
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        budgets = load(BUDGETS);
+        Properties pinned = load(PINNED_VERSIONS);
+        if (REPORT) {
+            System.out.println("headroom=" + budgets.getProperty("headroom"));
+            for (String library : LIBRARIES) {
+                System.out.println("calibrated." + library + "=" + pinned.getProperty(library));
+            }
+            System.out.println("calibrated.jvm=" + System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+            return;
+        }
+        for (String library : LIBRARIES) {
+            String calibrated = budgets.getProperty("calibrated." + library, "").trim();
+            if (!calibrated.equals(pinned.getProperty(library))) {
+                fail("allocation baselines were measured with " + library + " '" + calibrated + "' but pom.xml pins "
+                    + pinned.getProperty(library) + "; recalibrate with -Dallocation.report=true");
+            }
+        }
+    }
+
+    private static Properties load(String resource) {
+        Properties properties = new Properties();
+        try (InputStream in = AllocationBudgetTest.class.getResourceAsStream(resource)) {
+            properties.load(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return properties;
+    }
+
+    private static String value(int size) {
+        char[] value = new char[size];
+        Arrays.fill(value, 'x');
+        return new String(value);
+    }
+
+    private static byte[] jsonString(int size) {
+        return ("\"" + value(size - 2) + "\"").getBytes(UTF_8);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {16, 1024, 64 * 1024, 1024 * 1024})
+    void encrypt(int size) {
+        byte[] plaintext = jsonString(size);
+        assertWithinBudget("encrypt", size, () -> cryptoManager.encrypt(plaintext, null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {16, 1024, 64 * 1024, 1024 * 1024})
+    void decrypt(int size) {
+        byte[] plaintext = jsonString(size);
+        Map<String, Object> encrypted = cryptoManager.encrypt(plaintext, null);
+        assertWithinBudget("decrypt", size, () -> cryptoManager.decrypt(encrypted));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {16, 1024, 64 * 1024, 1024 * 1024})
+    void put(int size) {
+        String value = value(size);
+        JsonObjectCrypto crypto = JsonObject.create().crypto(cryptoManager);
+        assertWithinBudget("put", size, () -> crypto.put("field", value));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {16, 1024, 64 * 1024, 1024 * 1024})
+    void getString(int size) {
+        String value = value(size);
+        JsonObjectCrypto crypto = JsonObject.create().crypto(cryptoManager).put("field", value);
+        assertEquals(value, crypto.getString("field"));
+        assertWithinBudget("getString", size, () -> crypto.getString("field"));
+    }
+
+    private void assertWithinBudget(String operation, int payloadSize, Runnable task) {
+        String key = operation + "." + payloadSize;
+        long measured = allocatedBytesPerRun(task, payloadSize);
+        if (REPORT) {
+            System.out.println(key + "=" + measured);
+            return;
+        }
+
+        String baseline = budgets.getProperty(key, "").trim();
+        if (baseline.isEmpty()) {
+            fail("no allocation baseline for " + key + "; calibrate with -Dallocation.report=true");
+        }
+        double headroom = Double.parseDouble(budgets.getProperty("headroom"));
+        long budget = (long) (Long.parseLong(baseline) * headroom);
+        assertTrue(measured <= budget, () -> operation + " of " + payloadSize + " bytes allocated " + measured
+            + " bytes, over the budget of " + budget + " (baseline measured with couchbase-encryption "
+            + budgets.getProperty("calibrated.couchbase-encryption") + ", java-client "
+            + budgets.getProperty("calibrated.java-client") + " on " + budgets.getProperty("calibrated.jvm") + ")");
+    }
+
+    private static long allocatedBytesPerRun(Runnable task, int payloadSize) {
+        // Enough warmup for the JIT and one-time JCA/Jackson setup to settle, scaled down for large payloads
+        int runs = Math.max(5, Math.min(1000, WARMUP_BYTES / payloadSize));
+        for (int i = 0; i < runs; i++) {
+            task.run();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < runs; i++) {
+            task.run();
+        }
+        return (threadBean.getThreadAllocatedBytes(threadId) - before) / runs;
+    }
+}
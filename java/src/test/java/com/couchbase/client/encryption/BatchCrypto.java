@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.encryption.errors.DecryptionFailureException;
+import com.couchbase.client.encryption.errors.EncryptionFailureException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.ALGORITHM;
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.ASSOCIATED_DATA_LENGTH;
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.BLOCK_SIZE;
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.KEY_LENGTH;
+import static com.couchbase.client.encryption.AeadAes256CbcHmacSha512Format.TAG_LENGTH;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Encrypts and decrypts many values at once in the {@code AEAD_AES_256_CBC_HMAC_SHA512} format,
+ * for bulk loaders.
+ * <p>
+ * Compared with one {@link CryptoManager#encrypt} call per field, a batch resolves each key
+ * once, draws all IVs with a single {@link SecureRandom} call, and sets up one Cipher and one
+ * Mac per chunk of work. Batches of at least {@code parallelThreshold} values are split across
+ * the configured fork-join pool. Results are interchangeable with those of
+ * {@link AeadAes256CbcHmacSha512Provider}.
+ * <p>
+ * Encrypter aliases map to key ids, mirroring the encrypters registered on a
+ * {@link DefaultCryptoManager}. Failures are reported as {@link EncryptionFailureException} or
+ * {@link DecryptionFailureException}, with the index of the first failing value found.
+ */
+public class BatchCrypto {
+    private final Keyring keyring;
+    private final Map<String, String> aliasToKeyId;
+    private final SecureRandom secureRandom;
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+
+    private BatchCrypto(Builder builder) {
+        this.keyring = builder.keyring;
+        this.aliasToKeyId = new HashMap<>(builder.aliasToKeyId);
+        this.secureRandom = builder.secureRandom;
+        this.pool = builder.pool;
+        this.parallelThreshold = builder.parallelThreshold;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Encrypts every plaintext under the key of the given encrypter alias, or of the default
+     * encrypter if the alias is null. The results are in the same order, in the map form
+     * returned by {@code CryptoManager.encrypt}.
+     *
+     * @throws EncryptionFailureException if the alias or its key cannot be resolved, or a value fails to encrypt
+     */
+    public List<Map<String, Object>> encrypt(List<byte[]> plaintexts, String encrypterAlias) {
+        String alias = encrypterAlias == null ? CryptoManager.DEFAULT_ENCRYPTER_ALIAS : encrypterAlias;
+        String keyId = aliasToKeyId.get(alias);
+        if (keyId == null) {
+            throw new EncryptionFailureException("Encryption failed; Missing encrypter for alias '" + alias + "'");
+        }
+        Keyring.Key resolved;
+        byte[] key;
+        try {
+            resolved = keyring.getOrThrow(keyId);
+            key = checkLength(resolved);
+        } catch (RuntimeException e) {
+            throw new EncryptionFailureException("Encryption failed; " + e.getMessage(), e);
+        }
+
+        int count = plaintexts.size();
+        byte[] ivs = new byte[count * BLOCK_SIZE];
+        secureRandom.nextBytes(ivs);
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object>[] results = new Map[count];
+        ParallelChunks.forEachChunk(pool, parallelThreshold, count, (from, to) -> {
+            Cipher cipher = newCipher();
+            Mac mac = AeadAes256CbcHmacSha512Format.newMac(key);
+            SecretKeySpec encKey = AeadAes256CbcHmacSha512Format.aesKey(key);
+            for (int i = from; i < to; i++) {
+                byte[] ivCiphertextTag;
+                try {
+                    ivCiphertextTag = encryptOne(cipher, mac, encKey, ivs, i * BLOCK_SIZE, plaintexts.get(i));
+                } catch (GeneralSecurityException e) {
+                    throw new EncryptionFailureException("Encryption failed; " + e.getMessage() + atIndex(i), e);
+                }
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("alg", ALGORITHM);
+                result.put("kid", resolved.id());
+                result.put("ciphertext", Base64.getEncoder().encodeToString(ivCiphertextTag));
+                results[i] = result;
+            }
+        });
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Decrypts every encryption result, resolving each distinct kid once.
+     *
+     * @throws DecryptionFailureException if a result is malformed, uses another algorithm, names a
+     * key that cannot be resolved, or fails authentication
+     */
+    public List<byte[]> decrypt(List<Map<String, Object>> encrypted) {
+        int count = encrypted.size();
+        Map<String, byte[]> keys = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String kid = checkAttributes(encrypted.get(i), i);
+            if (!keys.containsKey(kid)) {
+                try {
+                    keys.put(kid, checkLength(keyring.getOrThrow(kid)));
+                } catch (RuntimeException e) {
+                    throw new DecryptionFailureException("Decryption failed; " + e.getMessage() + atIndex(i), e);
+                }
+            }
+        }
+
+        byte[][] results = new byte[count][];
+        ParallelChunks.forEachChunk(pool, parallelThreshold, count, (from, to) -> {
+            Cipher cipher = newCipher();
+            Map<String, Mac> macs = new HashMap<>();
+            for (int i = from; i < to; i++) {
+                Map<String, Object> e = encrypted.get(i);
+                String kid = (String) e.get("kid");
+                byte[] key = keys.get(kid);
+                byte[] ivCiphertextTag = AeadAes256CbcHmacSha512Format.decodeCiphertext((String) e.get("ciphertext"));
+                if (ivCiphertextTag == null) {
+                    throw new DecryptionFailureException("Decryption failed; Malformed ciphertext for crypto key '" + kid + "'" + atIndex(i));
+                }
+                if (!AeadAes256CbcHmacSha512Format.tagMatches(macs.computeIfAbsent(kid, k -> AeadAes256CbcHmacSha512Format.newMac(key)), ivCiphertextTag)) {
+                    throw new DecryptionFailureException("Decryption failed; Failed to authenticate ciphertext for crypto key '" + kid + "'" + atIndex(i));
+                }
+                try {
+                    results[i] = decryptOne(cipher, key, ivCiphertextTag);
+                } catch (GeneralSecurityException ex) {
+                    throw new DecryptionFailureException("Decryption failed; " + ex.getMessage() + atIndex(i), ex);
+                }
+            }
+        });
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Returns the kid of a result with all attributes present and the supported algorithm.
+     */
+    private static String checkAttributes(Map<String, Object> encrypted, int index) {
+        Object alg = encrypted.get("alg");
+        if (alg == null) {
+            throw new DecryptionFailureException("Decryption failed; Encryption result is missing algorithm attribute." + atIndex(index));
+        }
+        if (!ALGORITHM.equals(alg)) {
+            throw new DecryptionFailureException("Decryption failed; Missing decrypter for algorithm '" + alg + "'" + atIndex(index));
+        }
+        Object kid = encrypted.get("kid");
+        if (!(kid instanceof String)) {
+            throw new DecryptionFailureException("Decryption failed; Encryption result is missing kid attribute." + atIndex(index));
+        }
+        if (!(encrypted.get("ciphertext") instanceof String)) {
+            throw new DecryptionFailureException("Decryption failed; Encryption result is missing ciphertext attribute." + atIndex(index));
+        }
+        return (String) kid;
+    }
+
+    private static byte[] checkLength(Keyring.Key key) {
+        byte[] bytes = key.bytes();
+        if (bytes.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("Crypto key '" + key.id() + "' must be " + KEY_LENGTH + " bytes but was " + bytes.length);
+        }
+        return bytes;
+    }
+
+    private static String atIndex(int index) {
+        return " (batch index " + index + ")";
+    }
+
+    private static byte[] encryptOne(Cipher cipher, Mac mac, SecretKeySpec encKey, byte[] ivs, int ivOffset, byte[] plaintext)
+        throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, encKey, new IvParameterSpec(ivs, ivOffset, BLOCK_SIZE));
+        int cipherLength = cipher.getOutputSize(plaintext.length);
+        byte[] out = new byte[BLOCK_SIZE + cipherLength + TAG_LENGTH];
+        System.arraycopy(ivs, ivOffset, out, 0, BLOCK_SIZE);
+        int written = cipher.doFinal(plaintext, 0, plaintext.length, out, BLOCK_SIZE);
+        if (written != cipherLength) {
+            out = Arrays.copyOf(out, BLOCK_SIZE + written + TAG_LENGTH);
+        }
+        mac.update(out, 0, BLOCK_SIZE + written);
+        mac.update(ASSOCIATED_DATA_LENGTH);
+        System.arraycopy(mac.doFinal(), 0, out, BLOCK_SIZE + written, TAG_LENGTH);
+        return out;
+    }
+
+    private static byte[] decryptOne(Cipher cipher, byte[] key, byte[] ivCiphertextTag) throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, AeadAes256CbcHmacSha512Format.aesKey(key),
+            new IvParameterSpec(ivCiphertextTag, 0, BLOCK_SIZE));
+        return cipher.doFinal(ivCiphertextTag, BLOCK_SIZE, ivCiphertextTag.length - BLOCK_SIZE - TAG_LENGTH);
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/CBC/PKCS5Padding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/CBC/PKCS5Padding is not available", e);
+        }
+    }
+
+    public static class Builder {
+        private Keyring keyring;
+        private final Map<String, String> aliasToKeyId = new HashMap<>();
+        private SecureRandom secureRandom = new SecureRandom();
+        private ForkJoinPool pool;
+        private int parallelThreshold = 1024;
+
+        private Builder() {
+        }
+
+        public Builder keyring(Keyring keyring) {
+            this.keyring = requireNonNull(keyring);
+            return this;
+        }
+
+        /**
+         * Encrypts values of the default alias under the given key, like
+         * {@code DefaultCryptoManager.Builder.defaultEncrypter(provider.encrypterForKey(keyId))}.
+         */
+        public Builder defaultEncrypter(String keyId) {
+            return encrypter(CryptoManager.DEFAULT_ENCRYPTER_ALIAS, keyId);
+        }
+
+        /**
+         * Encrypts values of the given alias under the given key, like
+         * {@code DefaultCryptoManager.Builder.encrypter(alias, provider.encrypterForKey(keyId))}.
+         */
+        public Builder encrypter(String alias, String keyId) {
+            if (aliasToKeyId.containsKey(requireNonNull(alias))) {
+                throw new IllegalStateException("Alias '" + alias + "' is already associated with key '" + aliasToKeyId.get(alias) + "'");
+            }
+            aliasToKeyId.put(alias, requireNonNull(keyId));
+            return this;
+        }
+
+        public Builder secureRandom(SecureRandom secureRandom) {
+            this.secureRandom = requireNonNull(secureRandom);
+            return this;
+        }
+
+        /**
+         * Splits batches of at least {@code parallelThreshold} values across the given pool.
+         * Without a pool, batches run on the calling thread.
+         */
+        public Builder forkJoinPool(ForkJoinPool pool, int parallelThreshold) {
+            if (parallelThreshold < 1) {
+                throw new IllegalArgumentException("parallel threshold must be positive but got " + parallelThreshold);
+            }
+            this.pool = requireNonNull(pool);
+            this.parallelThreshold = parallelThreshold;
+            return this;
+        }
+
+        public BatchCrypto build() {
+            if (keyring == null) {
+                throw new IllegalStateException("keyring must be set");
+            }
+            return new BatchCrypto(this);
+        }
+    }
+}
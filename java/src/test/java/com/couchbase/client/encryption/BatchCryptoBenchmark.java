@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares per-field {@link CryptoManager#encrypt} calls with {@link BatchCrypto}, on the
+ * calling thread and split across a fork-join pool. Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.couchbase.client.encryption.BatchCryptoBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchCryptoBenchmark {
+    private static final String KEY_ID = "test-key";
+
+    @Param({"10000"})
+    int batchSize;
+
+    @Param({"32", "1024"})
+    int payloadSize;
+
+    private List<byte[]> plaintexts;
+    private CryptoManager cryptoManager;
+    private BatchCrypto batch;
+    private BatchCrypto parallelBatch;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Keyring keyring = EncryptionTestHelper.keyring();
+        AeadAes256CbcHmacSha512Provider provider = AeadAes256CbcHmacSha512Provider.builder()
+            .keyring(keyring)
+            .build();
+        cryptoManager = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey(KEY_ID))
+            .build();
+        batch = BatchCrypto.builder()
+            .keyring(keyring)
+            .defaultEncrypter(KEY_ID)
+            .build();
+        pool = new ForkJoinPool();
+        parallelBatch = BatchCrypto.builder()
+            .keyring(keyring)
+            .defaultEncrypter(KEY_ID)
+            .forkJoinPool(pool, 1024)
+            .build();
+
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+        payload[0] = '"';
+        payload[payloadSize - 1] = '"';
+        plaintexts = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            plaintexts.add(payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> perCall() {
+        List<Map<String, Object>> results = new ArrayList<>(plaintexts.size());
+        for (byte[] plaintext : plaintexts) {
+            results.add(cryptoManager.encrypt(plaintext, null));
+        }
+        return results;
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> batch() {
+        return batch.encrypt(plaintexts, null);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> parallelBatch() {
+        return parallelBatch.encrypt(plaintexts, null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(BatchCryptoBenchmark.class.getSimpleName())
+            .build())
+            .run();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.encryption.errors.DecryptionFailureException;
+import com.couchbase.client.encryption.errors.EncryptionFailureException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.couchbase.client.core.util.CbCollections.mapOf;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchCryptoTest {
+    private final CryptoManager cryptoManager;
+
+    public BatchCryptoTest() {
+        AeadAes256CbcHmacSha512Provider provider = EncryptionTestHelper.provider();
+        cryptoManager = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey("test-key"))
+            .build();
+    }
+
+    private static List<byte[]> plaintexts(int count) {
+        List<byte[]> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            char[] value = new char[i % 100];
+            Arrays.fill(value, (char) ('a' + i % 26));
+            result.add(("\"" + new String(value) + "\"").getBytes(UTF_8));
+        }
+        return result;
+    }
+
+    @Test
+    void matchesProviderOutput() {
+        final byte[] plaintext = "\"The enemy knows the system.\"".getBytes(UTF_8);
+        final Map<String, Object> encrypted = mapOf(
+            "alg", "AEAD_AES_256_CBC_HMAC_SHA512",
+            "kid", "test-key",
+            "ciphertext", "GvOMLcK5b/3YZpQJI0G8BLm98oj20ZLdqKDV3MfTuGlWL4R5p5Deykuv2XLW4LcDvnOkmhuUSRbQ8QVEmbjq43XHdOm3ColJ6LzoaAtJihk=");
+
+        BatchCrypto batch = BatchCrypto.builder()
+            .keyring(EncryptionTestHelper.keyring())
+            .defaultEncrypter("test-key")
+            .secureRandom(EncryptionTestHelper.secureRandom())
+            .build();
+
+        List<Map<String, Object>> results = batch.encrypt(Collections.nCopies(5, plaintext), null);
+        assertEquals(Collections.nCopies(5, encrypted), results);
+        assertEquals(Collections.nCopies(5, cryptoManager.encrypt(plaintext, null)), results);
+    }
+
+    @Test
+    void interoperatesWithCryptoManager() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BatchCrypto batch = BatchCrypto.builder()
+                .keyring(EncryptionTestHelper.keyring())
+                .defaultEncrypter("test-key")
+                .forkJoinPool(pool, 100)
+                .build();
+
+            List<byte[]> plaintexts = plaintexts(2000);
+            List<Map<String, Object>> encrypted = batch.encrypt(plaintexts, null);
+            assertEquals(plaintexts.size(), encrypted.size());
+            for (int i = 0; i < plaintexts.size(); i++) {
+                assertArrayEquals(plaintexts.get(i), cryptoManager.decrypt(encrypted.get(i)));
+            }
+
+            List<Map<String, Object>> encryptedOneByOne = new ArrayList<>();
+            for (byte[] plaintext : plaintexts) {
+                encryptedOneByOne.add(cryptoManager.encrypt(plaintext, null));
+            }
+            List<byte[]> decrypted = batch.decrypt(encryptedOneByOne);
+            for (int i = 0; i < plaintexts.size(); i++) {
+                assertArrayEquals(plaintexts.get(i), decrypted.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void rejectsBadResults() {
+        BatchCrypto batch = BatchCrypto.builder()
+            .keyring(EncryptionTestHelper.keyring())
+            .build();
+        Map<String, Object> valid = cryptoManager.encrypt("\"secret\"".getBytes(UTF_8), null);
+
+        Map<String, Object> tampered = new HashMap<>(valid);
+        char[] ciphertext = ((String) valid.get("ciphertext")).toCharArray();
+        ciphertext[30] = ciphertext[30] == 'A' ? 'B' : 'A';
+        tampered.put("ciphertext", new String(ciphertext));
+        DecryptionFailureException e = assertThrows(DecryptionFailureException.class,
+            () -> batch.decrypt(Arrays.asList(valid, tampered)));
+        assertEquals("Decryption failed; Failed to authenticate ciphertext for crypto key 'test-key' (batch index 1)", e.getMessage());
+
+        Map<String, Object> wrongAlg = new HashMap<>(valid);
+        wrongAlg.put("alg", "IncorrectAlgo");
+        e = assertThrows(DecryptionFailureException.class, () -> batch.decrypt(Arrays.asList(valid, valid, wrongAlg)));
+        assertEquals("Decryption failed; Missing decrypter for algorithm 'IncorrectAlgo' (batch index 2)", e.getMessage());
+
+        Map<String, Object> missingAlg = new HashMap<>(valid);
+        missingAlg.remove("alg");
+        e = assertThrows(DecryptionFailureException.class, () -> batch.decrypt(Collections.singletonList(missingAlg)));
+        assertEquals("Decryption failed; Encryption result is missing algorithm attribute. (batch index 0)", e.getMessage());
+
+        Map<String, Object> wrongKid = new HashMap<>(valid);
+        wrongKid.put("kid", "IncorrectKid");
+        e = assertThrows(DecryptionFailureException.class, () -> batch.decrypt(Collections.singletonList(wrongKid)));
+        assertEquals("Decryption failed; Failed to locate crypto key 'IncorrectKid' (batch index 0)", e.getMessage());
+    }
+
+    @Test
+    void reportsFailingIndexFromPool() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BatchCrypto batch = BatchCrypto.builder()
+                .keyring(EncryptionTestHelper.keyring())
+                .defaultEncrypter("test-key")
+                .forkJoinPool(pool, 100)
+                .build();
+            List<Map<String, Object>> encrypted = new ArrayList<>(batch.encrypt(plaintexts(2000), null));
+            Map<String, Object> truncated = new HashMap<>(encrypted.get(1234));
+            truncated.put("ciphertext", ((String) truncated.get("ciphertext")).substring(0, 40));
+            encrypted.set(1234, truncated);
+
+            DecryptionFailureException e = assertThrows(DecryptionFailureException.class, () -> batch.decrypt(encrypted));
+            assertEquals("Decryption failed; Malformed ciphertext for crypto key 'test-key' (batch index 1234)", e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void resolvesEncrypterAliases() {
+        AeadAes256CbcHmacSha512Provider provider = EncryptionTestHelper.provider();
+        CryptoManager aliased = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .encrypter("pci", provider.encrypterForKey("test-key"))
+            .build();
+        BatchCrypto batch = BatchCrypto.builder()
+            .keyring(EncryptionTestHelper.keyring())
+            .encrypter("pci", "test-key")
+            .secureRandom(EncryptionTestHelper.secureRandom())
+            .build();
+        byte[] plaintext = "\"4111111111111111\"".getBytes(UTF_8);
+
+        assertEquals(Collections.singletonList(aliased.encrypt(plaintext, "pci")),
+            batch.encrypt(Collections.singletonList(plaintext), "pci"));
+
+        EncryptionFailureException e = assertThrows(EncryptionFailureException.class,
+            () -> batch.encrypt(Collections.singletonList(plaintext), null));
+        assertEquals("Encryption failed; Missing encrypter for alias '__DEFAULT__'", e.getMessage());
+    }
+}
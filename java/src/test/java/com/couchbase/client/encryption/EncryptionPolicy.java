@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.java.json.JacksonTransformers;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Declares which fields of a schemaless {@link JsonObject} are encrypted, by path.
+ * <p>
+ * Paths start at the document root {@code $} and are made of {@code .fieldName} steps and
+ * {@code [*]} (every element of an array) steps; the last step must name a field. For example:
+ * <pre>
+ * EncryptionPolicy policy = EncryptionPolicy.builder()
+ *     .encrypt("$.customer.ssn")
+ *     .encrypt("$.cards[*].pan", "pci")
+ *     .build();
+ * </pre>
+ * The paths are compiled once into a tree, and {@link #encrypt} / {@link #decrypt} visit
+ * only the parts of the document the tree leads to, in a single pass. Encrypted fields use
+ * the same format as {@link com.couchbase.client.java.json.JsonObjectCrypto}, so either can
+ * read what the other wrote.
+ */
+public class EncryptionPolicy {
+    private final Node root;
+
+    private EncryptionPolicy(Node root) {
+        this.root = root;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Encrypts every field matched by the policy, in place. Paths that are absent from the
+     * document are skipped. Returns the same (modified) document.
+     */
+    public JsonObject encrypt(JsonObject document, CryptoManager cryptoManager) {
+        encryptFields(document, root, cryptoManager);
+        return document;
+    }
+
+    /**
+     * Decrypts every field matched by the policy, in place. Returns the same (modified) document.
+     */
+    public JsonObject decrypt(JsonObject document, CryptoManager cryptoManager) {
+        decryptFields(document, root, cryptoManager);
+        return document;
+    }
+
+    private static void encryptFields(JsonObject object, Node node, CryptoManager cryptoManager) {
+        for (Map.Entry<String, Node> e : node.fields.entrySet()) {
+            String name = e.getKey();
+            Node child = e.getValue();
+            if (!object.containsKey(name)) {
+                continue;
+            }
+            Object value = object.get(name);
+            if (child.encrypt) {
+                Map<String, Object> encrypted = cryptoManager.encrypt(serialize(value), child.encrypterAlias);
+                object.removeKey(name);
+                object.put(cryptoManager.mangle(name), JsonObject.from(encrypted));
+            } else {
+                descend(value, child, cryptoManager, true);
+            }
+        }
+    }
+
+    private static void decryptFields(JsonObject object, Node node, CryptoManager cryptoManager) {
+        for (Map.Entry<String, Node> e : node.fields.entrySet()) {
+            String name = e.getKey();
+            Node child = e.getValue();
+            if (child.encrypt) {
+                String mangled = cryptoManager.mangle(name);
+                Object encrypted = object.get(mangled);
+                if (encrypted == null) {
+                    continue;
+                }
+                if (!(encrypted instanceof JsonObject)) {
+                    throw new IllegalArgumentException("Field '" + mangled + "' is not an encryption result");
+                }
+                Object value = deserialize(cryptoManager.decrypt(((JsonObject) encrypted).toMap()));
+                object.removeKey(mangled);
+                if (value == null) {
+                    object.putNull(name);
+                } else {
+                    object.put(name, value);
+                }
+            } else if (object.containsKey(name)) {
+                descend(object.get(name), child, cryptoManager, false);
+            }
+        }
+    }
+
+    private static void descend(Object value, Node node, CryptoManager cryptoManager, boolean encrypt) {
+        if (value instanceof JsonObject) {
+            if (encrypt) {
+                encryptFields((JsonObject) value, node, cryptoManager);
+            } else {
+                decryptFields((JsonObject) value, node, cryptoManager);
+            }
+        } else if (value instanceof JsonArray && node.elements != null) {
+            for (Object element : (JsonArray) value) {
+                descend(element, node.elements, cryptoManager, encrypt);
+            }
+        }
+    }
+
+    private static byte[] serialize(Object value) {
+        try {
+            return JacksonTransformers.MAPPER.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object deserialize(byte[] plaintext) {
+        try {
+            Object value = JacksonTransformers.MAPPER.readValue(plaintext, Object.class);
+            if (value instanceof Map) {
+                return JsonObject.from((Map<String, ?>) value);
+            }
+            if (value instanceof List) {
+                return JsonArray.from((List<?>) value);
+            }
+            return value;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An immutable node of the compiled path tree.
+     */
+    private static class Node {
+        private final Map<String, Node> fields;
+        private final Node elements;
+        private final boolean encrypt;
+        private final String encrypterAlias;
+
+        private Node(Map<String, Node> fields, Node elements, boolean encrypt, String encrypterAlias) {
+            this.fields = fields;
+            this.elements = elements;
+            this.encrypt = encrypt;
+            this.encrypterAlias = encrypterAlias;
+        }
+    }
+
+    public static class Builder {
+        private final Step root = new Step();
+
+        private Builder() {
+        }
+
+        /**
+         * Encrypts the field at the given path with the default encrypter.
+         */
+        public Builder encrypt(String path) {
+            return encrypt(path, null);
+        }
+
+        /**
+         * Encrypts the field at the given path with the encrypter registered under the given alias.
+         */
+        public Builder encrypt(String path, String encrypterAlias) {
+            requireNonNull(path);
+            if (!path.startsWith("$")) {
+                throw new IllegalArgumentException("Path must start with '$' but got: " + path);
+            }
+
+            Step node = root;
+            boolean endsWithField = false;
+            int i = 1;
+            while (i < path.length()) {
+                if (path.startsWith("[*]", i)) {
+                    if (node.encrypt) {
+                        throw conflict(path);
+                    }
+                    if (node.elements == null) {
+                        node.elements = new Step();
+                    }
+                    node = node.elements;
+                    endsWithField = false;
+                    i += 3;
+                } else if (path.charAt(i) == '.') {
+                    int end = i + 1;
+                    while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                        end++;
+                    }
+                    String name = path.substring(i + 1, end);
+                    if (name.isEmpty()) {
+                        throw new IllegalArgumentException("Empty field name in path: " + path);
+                    }
+                    if (node.encrypt) {
+                        throw conflict(path);
+                    }
+                    node = node.fields.computeIfAbsent(name, key -> new Step());
+                    endsWithField = true;
+                    i = end;
+                } else {
+                    throw new IllegalArgumentException("Unexpected character '" + path.charAt(i)
+                        + "' at position " + i + " in path: " + path);
+                }
+            }
+
+            if (!endsWithField) {
+                throw new IllegalArgumentException("Path must end with a field name: " + path);
+            }
+            if (node.hasChildren() || node.encrypt) {
+                throw conflict(path);
+            }
+            node.encrypt = true;
+            node.encrypterAlias = encrypterAlias;
+            return this;
+        }
+
+        private static IllegalArgumentException conflict(String path) {
+            return new IllegalArgumentException("Path overlaps with another encrypted path: " + path);
+        }
+
+        /**
+         * Returns a policy with its own copy of the paths; later calls to this builder do not affect it.
+         */
+        public EncryptionPolicy build() {
+            return new EncryptionPolicy(root.freeze());
+        }
+
+        /**
+         * A mutable node of the path tree being built.
+         */
+        private static class Step {
+            private final Map<String, Step> fields = new LinkedHashMap<>();
+            private Step elements;
+            private boolean encrypt;
+            private String encrypterAlias;
+
+            private boolean hasChildren() {
+                return !fields.isEmpty() || elements != null;
+            }
+
+            private Node freeze() {
+                Map<String, Node> frozenFields = new LinkedHashMap<>();
+                fields.forEach((name, child) -> frozenFields.put(name, child.freeze()));
+                return new Node(Collections.unmodifiableMap(frozenFields),
+                    elements == null ? null : elements.freeze(), encrypt, encrypterAlias);
+            }
+        }
+    }
+}
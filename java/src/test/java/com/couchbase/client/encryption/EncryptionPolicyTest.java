@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncryptionPolicyTest {
+    private final CryptoManager cryptoManager;
+    private final EncryptionPolicy policy = EncryptionPolicy.builder()
+        .encrypt("$.customer.ssn")
+        .encrypt("$.customer.address")
+        .encrypt("$.cards[*].pan", "pci")
+        .encrypt("$.matrix[*][*].secret")
+        .build();
+
+    public EncryptionPolicyTest() {
+        AeadAes256CbcHmacSha512Provider provider = EncryptionTestHelper.provider();
+        cryptoManager = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey("test-key"))
+            .encrypter("pci", provider.encrypterForKey("test-key"))
+            .build();
+    }
+
+    private static JsonObject sampleDocument() {
+        return JsonObject.create()
+            .put("customer", JsonObject.create()
+                .put("name", "Alice")
+                .put("ssn", "123-45-6789")
+                .put("address", JsonObject.create().put("city", "Springfield").put("zip", 12345)))
+            .put("cards", JsonArray.from(
+                JsonObject.create().put("pan", "4111111111111111").put("expiry", "12/30"),
+                JsonObject.create().put("pan", "5500000000000004").put("expiry", "01/31"),
+                JsonObject.create().put("expiry", "02/32")))
+            .put("matrix", JsonArray.from(JsonArray.from(JsonObject.create().put("secret", true))))
+            .put("notes", "plain");
+    }
+
+    @Test
+    void encryptsMatchedFieldsOnly() {
+        JsonObject document = policy.encrypt(sampleDocument(), cryptoManager);
+
+        JsonObject customer = document.getObject("customer");
+        assertEquals("Alice", customer.getString("name"));
+        assertFalse(customer.containsKey("ssn"));
+        assertFalse(customer.containsKey("address"));
+        assertEquals("test-key", customer.getObject("encrypted$ssn").getString("kid"));
+        assertNotNull(customer.getObject("encrypted$address").getString("ciphertext"));
+
+        JsonArray cards = document.getArray("cards");
+        for (int i = 0; i < 2; i++) {
+            assertFalse(cards.getObject(i).containsKey("pan"));
+            assertEquals("AEAD_AES_256_CBC_HMAC_SHA512", cards.getObject(i).getObject("encrypted$pan").getString("alg"));
+            assertNotNull(cards.getObject(i).getString("expiry"));
+        }
+        assertEquals(JsonObject.create().put("expiry", "02/32"), cards.getObject(2));
+
+        assertNotNull(document.getArray("matrix").getArray(0).getObject(0).getObject("encrypted$secret"));
+        assertEquals("plain", document.getString("notes"));
+    }
+
+    @Test
+    void decryptRestoresOriginalDocument() {
+        JsonObject document = policy.encrypt(sampleDocument(), cryptoManager);
+        JsonObject roundTripped = JsonObject.fromJson(document.toString());
+
+        assertEquals(sampleDocument(), policy.decrypt(roundTripped, cryptoManager));
+    }
+
+    @Test
+    void compatibleWithJsonObjectCrypto() {
+        JsonObject document = policy.encrypt(sampleDocument(), cryptoManager);
+
+        assertEquals("123-45-6789", document.getObject("customer").crypto(cryptoManager).getString("ssn"));
+        assertEquals("Springfield", document.getObject("customer").crypto(cryptoManager)
+            .getObject("address").getString("city"));
+
+        JsonObject written = JsonObject.create();
+        written.crypto(cryptoManager).put("pan", "4111111111111111");
+        JsonObject document2 = JsonObject.create().put("cards", JsonArray.from(written));
+        assertEquals("4111111111111111",
+            policy.decrypt(document2, cryptoManager).getArray("cards").getObject(0).getString("pan"));
+    }
+
+    @Test
+    void rejectsEncryptedFieldThatIsNotAnObject() {
+        JsonObject document = policy.encrypt(sampleDocument(), cryptoManager);
+        document.getObject("customer").put("encrypted$ssn", "123-45-6789");
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> policy.decrypt(document, cryptoManager));
+        assertEquals("Field 'encrypted$ssn' is not an encryption result", e.getMessage());
+    }
+
+    @Test
+    void builtPolicyIsUnaffectedByLaterBuilderCalls() {
+        EncryptionPolicy.Builder builder = EncryptionPolicy.builder().encrypt("$.customer.ssn");
+        EncryptionPolicy built = builder.build();
+        builder.encrypt("$.notes");
+
+        JsonObject encrypted = built.encrypt(sampleDocument(), cryptoManager);
+        assertEquals("plain", encrypted.getString("notes"));
+        assertTrue(encrypted.getObject("customer").containsKey("encrypted$ssn"));
+        assertTrue(builder.build().encrypt(sampleDocument(), cryptoManager).containsKey("encrypted$notes"));
+    }
+
+    @Test
+    void rejectsInvalidPaths() {
+        assertThrows(IllegalArgumentException.class, () -> EncryptionPolicy.builder().encrypt("customer.ssn"));
+        assertThrows(IllegalArgumentException.class, () -> EncryptionPolicy.builder().encrypt("$.cards[*]"));
+        assertThrows(IllegalArgumentException.class, () -> EncryptionPolicy.builder().encrypt("$..ssn"));
+        assertThrows(IllegalArgumentException.class, () -> EncryptionPolicy.builder().encrypt("$.cards[0].pan"));
+        assertThrows(IllegalArgumentException.class, () -> EncryptionPolicy.builder()
+            .encrypt("$.customer")
+            .encrypt("$.customer.ssn"));
+        assertThrows(IllegalArgumentException.class, () -> EncryptionPolicy.builder()
+            .encrypt("$.customer.ssn")
+            .encrypt("$.customer"));
+    }
+}
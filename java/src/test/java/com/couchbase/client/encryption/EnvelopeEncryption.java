@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.json.JsonObjectCrypto;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Envelope encryption: fields are encrypted under a data key, and only the data key is
+ * encrypted ("wrapped") under the long-lived master key from the keyring.
+ * <p>
+ * A data key is generated per document, or once per batch with {@link #newDataKey()}. Its
+ * wrapped form is stored once in each document, in the {@code dataKeyField}. Fields use the
+ * normal {@code AEAD_AES_256_CBC_HMAC_SHA512} format with the data key id as their kid.
+ * <p>
+ * Unwrapped data keys are kept in a bounded LRU cache, so the master keyring (for example a
+ * remote KMS) is used once per new data key and once per cache miss, not once per field.
+ */
+public class EnvelopeEncryption {
+    public static final String DEFAULT_DATA_KEY_FIELD = "encryptedDataKey";
+
+    private final CryptoManager masterCryptoManager;
+    private final SecureRandom secureRandom;
+    private final String dataKeyField;
+    private final Map<String, CryptoManager> cache;
+
+    private EnvelopeEncryption(Builder builder) {
+        AeadAes256CbcHmacSha512Provider masterProvider = AeadAes256CbcHmacSha512Provider.builder()
+            .keyring(builder.masterKeyring)
+            .secureRandom(builder.secureRandom)
+            .build();
+        this.masterCryptoManager = DefaultCryptoManager.builder()
+            .decrypter(masterProvider.decrypter())
+            .defaultEncrypter(masterProvider.encrypterForKey(builder.masterKeyId))
+            .build();
+        this.secureRandom = builder.secureRandom;
+        this.dataKeyField = builder.dataKeyField;
+
+        int cacheSize = builder.cacheSize;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<String, CryptoManager>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CryptoManager> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Generates a data key and wraps it with the master key. Reuse the returned key to
+     * encrypt a batch of documents with a single master key call.
+     */
+    public DataKey newDataKey() {
+        byte[] keyBytes = new byte[AeadAes256CbcHmacSha512Format.KEY_LENGTH];
+        secureRandom.nextBytes(keyBytes);
+        String id = "dek-" + UUID.randomUUID();
+
+        JsonObject wrapped = JsonObject.from(masterCryptoManager.encrypt(keyBytes, null)).put("id", id);
+        CryptoManager cryptoManager = dataKeyCryptoManager(id, keyBytes);
+        cache.put(wrapped.getString("ciphertext"), cryptoManager);
+        return new DataKey(id, wrapped, cryptoManager);
+    }
+
+    /**
+     * Stores a new data key in the document and returns a crypto view that encrypts under it.
+     */
+    public JsonObjectCrypto encrypting(JsonObject document) {
+        return encrypting(document, newDataKey());
+    }
+
+    /**
+     * Stores the given data key in the document and returns a crypto view that encrypts under it.
+     */
+    public JsonObjectCrypto encrypting(JsonObject document, DataKey dataKey) {
+        document.put(dataKeyField, JsonObject.from(dataKey.wrapped.toMap()));
+        return document.crypto(dataKey.cryptoManager);
+    }
+
+    /**
+     * Returns a crypto view that decrypts (and encrypts) fields under the document's data key,
+     * unwrapping the key with the master key if it is not cached.
+     */
+    public JsonObjectCrypto decrypting(JsonObject document) {
+        return document.crypto(cryptoManagerFor(document));
+    }
+
+    /**
+     * Returns the crypto manager for the data key stored in the document.
+     */
+    public CryptoManager cryptoManagerFor(JsonObject document) {
+        JsonObject wrapped = document.getObject(dataKeyField);
+        if (wrapped == null) {
+            throw new IllegalArgumentException("Document has no data key in field '" + dataKeyField + "'");
+        }
+        // Keyed by the wrapped ciphertext rather than the (unauthenticated) id, so a
+        // tampered id can never map to another document's key.
+        String cacheKey = wrapped.getString("ciphertext");
+        CryptoManager cached = cacheKey == null ? null : cache.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        Map<String, Object> encryptedKey = wrapped.toMap();
+        Object id = encryptedKey.remove("id");
+        if (!(id instanceof String)) {
+            throw new IllegalArgumentException("Data key in field '" + dataKeyField + "' has no string id");
+        }
+        CryptoManager cryptoManager = dataKeyCryptoManager((String) id, masterCryptoManager.decrypt(encryptedKey));
+        cache.put(cacheKey, cryptoManager);
+        return cryptoManager;
+    }
+
+    /**
+     * Number of unwrapped data keys currently cached.
+     */
+    public int cachedDataKeys() {
+        return cache.size();
+    }
+
+    private CryptoManager dataKeyCryptoManager(String id, byte[] keyBytes) {
+        AeadAes256CbcHmacSha512Provider provider = AeadAes256CbcHmacSha512Provider.builder()
+            .keyring(Keyring.fromMap(Collections.singletonMap(id, keyBytes)))
+            .secureRandom(secureRandom)
+            .build();
+        return DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey(id))
+            .build();
+    }
+
+    /**
+     * A generated data key, with its wrapped form.
+     */
+    public static class DataKey {
+        private final String id;
+        private final JsonObject wrapped;
+        private final CryptoManager cryptoManager;
+
+        private DataKey(String id, JsonObject wrapped, CryptoManager cryptoManager) {
+            this.id = id;
+            this.wrapped = wrapped;
+            this.cryptoManager = cryptoManager;
+        }
+
+        public String id() {
+            return id;
+        }
+    }
+
+    public static class Builder {
+        private Keyring masterKeyring;
+        private String masterKeyId;
+        private int cacheSize = 1024;
+        private String dataKeyField = DEFAULT_DATA_KEY_FIELD;
+        private SecureRandom secureRandom = new SecureRandom();
+
+        private Builder() {
+        }
+
+        /**
+         * The keyring holding the master key, for example one backed by a KMS.
+         */
+        public Builder masterKeyring(Keyring masterKeyring) {
+            this.masterKeyring = requireNonNull(masterKeyring);
+            return this;
+        }
+
+        /**
+         * Id of the master key that wraps new data keys. Data keys wrapped by other master
+         * keys in the keyring can still be unwrapped.
+         */
+        public Builder masterKeyId(String masterKeyId) {
+            this.masterKeyId = requireNonNull(masterKeyId);
+            return this;
+        }
+
+        public Builder cacheSize(int cacheSize) {
+            if (cacheSize < 1) {
+                throw new IllegalArgumentException("cache size must be positive but got " + cacheSize);
+            }
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        public Builder dataKeyField(String dataKeyField) {
+            this.dataKeyField = requireNonNull(dataKeyField);
+            return this;
+        }
+
+        public Builder secureRandom(SecureRandom secureRandom) {
+            this.secureRandom = requireNonNull(secureRandom);
+            return this;
+        }
+
+        public EnvelopeEncryption build() {
+            if (masterKeyring == null || masterKeyId == null) {
+                throw new IllegalStateException("masterKeyring and masterKeyId must be set");
+            }
+            return new EnvelopeEncryption(this);
+        }
+    }
+}
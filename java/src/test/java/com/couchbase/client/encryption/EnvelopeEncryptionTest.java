@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.encryption.errors.DecryptionFailureException;
+import com.couchbase.client.java.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EnvelopeEncryptionTest {
+    // Local stand-in for a KMS: counts every master key lookup
+    private final AtomicInteger kmsCalls = new AtomicInteger();
+    private final Keyring fakeKms = keyId -> {
+        kmsCalls.incrementAndGet();
+        return EncryptionTestHelper.keyring().get(keyId);
+    };
+
+    private EnvelopeEncryption.Builder envelope() {
+        return EnvelopeEncryption.builder()
+            .masterKeyring(fakeKms)
+            .masterKeyId("test-key");
+    }
+
+    private static List<JsonObject> roundTrip(List<JsonObject> documents) {
+        List<JsonObject> result = new ArrayList<>();
+        for (JsonObject document : documents) {
+            result.add(JsonObject.fromJson(document.toString()));
+        }
+        return result;
+    }
+
+    @Test
+    void storesWrappedDataKeyOncePerDocument() {
+        EnvelopeEncryption envelope = envelope().build();
+        JsonObject document = JsonObject.create();
+        envelope.encrypting(document)
+            .put("ssn", "123-45-6789")
+            .put("pan", "4111111111111111");
+
+        JsonObject dataKey = document.getObject(EnvelopeEncryption.DEFAULT_DATA_KEY_FIELD);
+        assertEquals("test-key", dataKey.getString("kid"));
+        assertEquals("AEAD_AES_256_CBC_HMAC_SHA512", dataKey.getString("alg"));
+        assertEquals(dataKey.getString("id"), document.getObject("encrypted$ssn").getString("kid"));
+        assertEquals(dataKey.getString("id"), document.getObject("encrypted$pan").getString("kid"));
+
+        assertEquals("123-45-6789", envelope.decrypting(document).getString("ssn"));
+    }
+
+    @Test
+    void batchUsesOneMasterKeyCall() {
+        EnvelopeEncryption envelope = envelope().build();
+
+        int before = kmsCalls.get();
+        EnvelopeEncryption.DataKey dataKey = envelope.newDataKey();
+        int wrapCalls = kmsCalls.get() - before;
+        assertTrue(wrapCalls > 0);
+
+        List<JsonObject> documents = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            JsonObject document = JsonObject.create().put("n", i);
+            envelope.encrypting(document, dataKey).put("secret", "value-" + i);
+            documents.add(document);
+        }
+        for (JsonObject document : roundTrip(documents)) {
+            assertEquals("value-" + document.getInt("n"), envelope.decrypting(document).getString("secret"));
+        }
+        assertEquals(wrapCalls, kmsCalls.get() - before);
+    }
+
+    @Test
+    void unwrapsOncePerCacheMiss() {
+        EnvelopeEncryption writer = envelope().build();
+        EnvelopeEncryption.DataKey dataKey = writer.newDataKey();
+        List<JsonObject> documents = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            JsonObject document = JsonObject.create();
+            writer.encrypting(document, dataKey).put("secret", "value");
+            documents.add(document);
+        }
+
+        // A reader with a cold cache, e.g. another service instance
+        EnvelopeEncryption reader = envelope().build();
+        List<JsonObject> stored = roundTrip(documents);
+        int before = kmsCalls.get();
+        assertEquals("value", reader.decrypting(stored.get(0)).getString("secret"));
+        int unwrapCalls = kmsCalls.get() - before;
+        assertTrue(unwrapCalls > 0);
+
+        for (JsonObject document : stored) {
+            assertEquals("value", reader.decrypting(document).getString("secret"));
+        }
+        assertEquals(unwrapCalls, kmsCalls.get() - before);
+    }
+
+    @Test
+    void cacheIsBounded() {
+        EnvelopeEncryption writer = envelope().build();
+        List<JsonObject> documents = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            JsonObject document = JsonObject.create();
+            writer.encrypting(document).put("secret", "value-" + i);
+            documents.add(document);
+        }
+
+        EnvelopeEncryption reader = envelope().cacheSize(2).build();
+        for (JsonObject document : documents) {
+            reader.decrypting(document).getString("secret");
+        }
+        assertEquals(2, reader.cachedDataKeys());
+
+        int before = kmsCalls.get();
+        assertEquals("value-0", reader.decrypting(documents.get(0)).getString("secret"));
+        assertTrue(kmsCalls.get() > before);
+    }
+
+    @Test
+    void rejectsTamperedDataKey() {
+        EnvelopeEncryption writer = envelope().build();
+        JsonObject document = JsonObject.create();
+        writer.encrypting(document).put("secret", "value");
+
+        JsonObject stored = JsonObject.fromJson(document.toString());
+        JsonObject dataKey = stored.getObject(EnvelopeEncryption.DEFAULT_DATA_KEY_FIELD);
+        char[] ciphertext = dataKey.getString("ciphertext").toCharArray();
+        ciphertext[30] = ciphertext[30] == 'A' ? 'B' : 'A';
+        dataKey.put("ciphertext", new String(ciphertext));
+
+        EnvelopeEncryption reader = envelope().build();
+        assertThrows(DecryptionFailureException.class, () -> reader.decrypting(stored));
+        assertThrows(IllegalArgumentException.class, () -> reader.decrypting(JsonObject.create()));
+    }
+
+    @Test
+    void rejectsDataKeyWithoutStringId() {
+        EnvelopeEncryption writer = envelope().build();
+        JsonObject document = JsonObject.create();
+        writer.encrypting(document).put("secret", "value");
+
+        EnvelopeEncryption reader = envelope().build();
+        JsonObject missingId = JsonObject.fromJson(document.toString());
+        missingId.getObject(EnvelopeEncryption.DEFAULT_DATA_KEY_FIELD).removeKey("id");
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> reader.decrypting(missingId));
+        assertEquals("Data key in field '" + EnvelopeEncryption.DEFAULT_DATA_KEY_FIELD + "' has no string id", e.getMessage());
+
+        JsonObject numericId = JsonObject.fromJson(document.toString());
+        numericId.getObject(EnvelopeEncryption.DEFAULT_DATA_KEY_FIELD).put("id", 42);
+        assertThrows(IllegalArgumentException.class, () -> reader.decrypting(numericId));
+        assertEquals(0, reader.cachedDataKeys());
+    }
+}
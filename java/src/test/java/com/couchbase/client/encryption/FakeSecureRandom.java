@@ -21,9 +21,12 @@ class FakeSecureRandom extends SecureRandom {
 
     @Override
     public void nextBytes(byte[] output) {
-        if (output.length != fixedBytes.length) {
-            throw new IllegalArgumentException("expected output array to have length " + fixedBytes.length);
+        // A multiple of the fixed length is filled with repeated copies, for bulk IV draws
+        if (output.length % fixedBytes.length != 0) {
+            throw new IllegalArgumentException("expected output array length to be a multiple of " + fixedBytes.length);
+        }
+        for (int offset = 0; offset < output.length; offset += fixedBytes.length) {
+            System.arraycopy(fixedBytes, 0, output, offset, fixedBytes.length);
         }
-        System.arraycopy(fixedBytes, 0, output, 0, fixedBytes.length);
     }
 }
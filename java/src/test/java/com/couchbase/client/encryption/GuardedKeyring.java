@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A {@link Keyring} decorator that protects a slow or remote keyring from waves of bad documents.
+ * <ul>
+ * <li>Key ids the delegate does not know are remembered for a short time, so repeated lookups
+ * of a retired kid return immediately instead of reaching the delegate.</li>
+ * <li>Misses and errors are counted per key id, in total and over a sliding window; see
+ * {@link #failureCounts()} and {@link #recentFailureCounts()}.</li>
+ * <li>Optionally, after a number of consecutive delegate errors a breaker opens and lookups fail
+ * fast until the cool-down has passed. The next lookup is then let through as a single probe
+ * while the others keep failing fast; its success closes the breaker and its error re-opens it.</li>
+ * </ul>
+ * Lookups of a cached unknown kid still produce the usual "Failed to locate crypto key" error
+ * from the provider.
+ */
+public class GuardedKeyring implements Keyring {
+    /**
+     * Counter key for failures of key ids beyond {@code maxTrackedKeyIds}.
+     */
+    public static final String OTHER_KEY_IDS = "*";
+
+    static final int WINDOW_BUCKETS = 10;
+
+    private final Keyring delegate;
+    private final long negativeTtlNanos;
+    private final int maxTrackedKeyIds;
+    private final long bucketNanos;
+    private final int breakerThreshold;
+    private final long breakerOpenNanos;
+    private final LongSupplier nanoTime;
+
+    private final Map<String, Long> unknownKeyIds = new ConcurrentHashMap<>();
+    // The same entries oldest first. With a single TTL that is also expiry order, so eviction
+    // takes from the head. Entries whose key id was since removed or re-added are skipped.
+    private final Queue<UnknownKeyId> expiryOrder = new ConcurrentLinkedQueue<>();
+    private final Map<String, FailureCounter> failures = new ConcurrentHashMap<>();
+    private final AtomicInteger consecutiveErrors = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile long breakerOpenUntil;
+    private volatile boolean breakerOpen;
+
+    private GuardedKeyring(Builder builder) {
+        this.delegate = builder.delegate;
+        this.negativeTtlNanos = builder.negativeCacheTtl.toNanos();
+        this.maxTrackedKeyIds = builder.maxTrackedKeyIds;
+        this.bucketNanos = Math.max(1, builder.failureWindow.toNanos() / WINDOW_BUCKETS);
+        this.breakerThreshold = builder.breakerThreshold;
+        this.breakerOpenNanos = builder.breakerOpenDuration.toNanos();
+        this.nanoTime = builder.nanoTime;
+    }
+
+    public static Builder builder(Keyring delegate) {
+        return new Builder(delegate);
+    }
+
+    @Override
+    public Optional<Key> get(String keyId) {
+        long now = nanoTime.getAsLong();
+        if (keyId == null) {
+            recordFailure("null", now);
+            return Optional.empty();
+        }
+
+        Long unknownUntil = unknownKeyIds.get(keyId);
+        if (unknownUntil != null) {
+            if (now - unknownUntil < 0) {
+                recordFailure(keyId, now);
+                return Optional.empty();
+            }
+            unknownKeyIds.remove(keyId, unknownUntil);
+        }
+
+        // Once the cool-down has passed, exactly one lookup probes the delegate
+        boolean probe = false;
+        if (breakerOpen) {
+            if (now - breakerOpenUntil < 0 || !probing.compareAndSet(false, true)) {
+                recordFailure(keyId, now);
+                throw new IllegalStateException("Keyring unavailable (circuit breaker open); cannot look up crypto key '" + keyId + "'");
+            }
+            probe = true;
+        }
+
+        Optional<Key> key;
+        try {
+            key = delegate.get(keyId);
+            consecutiveErrors.set(0);
+            breakerOpen = false;
+        } catch (RuntimeException e) {
+            recordFailure(keyId, now);
+            if (probe || breakerThreshold > 0 && consecutiveErrors.incrementAndGet() >= breakerThreshold) {
+                breakerOpenUntil = nanoTime.getAsLong() + breakerOpenNanos;
+                breakerOpen = true;
+            }
+            throw e;
+        } finally {
+            if (probe) {
+                probing.set(false);
+            }
+        }
+
+        if (!key.isPresent()) {
+            recordFailure(keyId, now);
+            if (negativeTtlNanos > 0) {
+                rememberUnknown(keyId, now);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Forgets all cached unknown key ids, for example right after new keys were added.
+     */
+    public void invalidateUnknownKeyIds() {
+        unknownKeyIds.clear();
+        expiryOrder.clear();
+    }
+
+    /**
+     * Returns true if lookups currently fail fast: the breaker is open and either its cool-down
+     * has not passed or a probe is in flight.
+     */
+    public boolean isBreakerOpen() {
+        return breakerOpen && (nanoTime.getAsLong() - breakerOpenUntil < 0 || probing.get());
+    }
+
+    /**
+     * Returns the number of failed lookups (unknown key or delegate error) per key id since creation.
+     */
+    public Map<String, Long> failureCounts() {
+        Map<String, Long> result = new HashMap<>();
+        failures.forEach((keyId, counter) -> result.put(keyId, counter.total.sum()));
+        return result;
+    }
+
+    /**
+     * Returns the number of failed lookups per key id within about the last failure window,
+     * omitting key ids without recent failures.
+     */
+    public Map<String, Long> recentFailureCounts() {
+        long bucket = Math.floorDiv(nanoTime.getAsLong(), bucketNanos);
+        Map<String, Long> result = new HashMap<>();
+        failures.forEach((keyId, counter) -> {
+            long recent = counter.recent(bucket);
+            if (recent > 0) {
+                result.put(keyId, recent);
+            }
+        });
+        return result;
+    }
+
+    private void rememberUnknown(String keyId, long now) {
+        // Drop expired entries, and while full the entry closest to expiry; each costs O(1)
+        UnknownKeyId oldest;
+        while ((unknownKeyIds.size() >= maxTrackedKeyIds || isExpired(expiryOrder.peek(), now))
+            && (oldest = expiryOrder.poll()) != null) {
+            unknownKeyIds.remove(oldest.keyId, oldest.until);
+        }
+        long until = now + negativeTtlNanos;
+        unknownKeyIds.put(keyId, until);
+        expiryOrder.add(new UnknownKeyId(keyId, until));
+    }
+
+    private static boolean isExpired(UnknownKeyId entry, long now) {
+        return entry != null && now - entry.until >= 0;
+    }
+
+    private void recordFailure(String keyId, long now) {
+        FailureCounter counter = failures.get(keyId);
+        if (counter == null) {
+            String trackedKeyId = failures.size() < maxTrackedKeyIds ? keyId : OTHER_KEY_IDS;
+            counter = failures.computeIfAbsent(trackedKeyId, id -> new FailureCounter());
+        }
+        counter.record(Math.floorDiv(now, bucketNanos));
+    }
+
+    private static class UnknownKeyId {
+        private final String keyId;
+        private final long until;
+
+        UnknownKeyId(String keyId, long until) {
+            this.keyId = keyId;
+            this.until = until;
+        }
+    }
+
+    /**
+     * Failures of one key id: the total, and counts per time bucket over the sliding window.
+     */
+    private static class FailureCounter {
+        private final LongAdder total = new LongAdder();
+        private final long[] counts = new long[WINDOW_BUCKETS];
+        // The bucket number each slot currently counts
+        private final long[] buckets = new long[WINDOW_BUCKETS];
+
+        void record(long bucket) {
+            total.increment();
+            int slot = (int) Math.floorMod(bucket, (long) WINDOW_BUCKETS);
+            synchronized (this) {
+                if (buckets[slot] != bucket) {
+                    buckets[slot] = bucket;
+                    counts[slot] = 0;
+                }
+                counts[slot]++;
+            }
+        }
+
+        synchronized long recent(long bucket) {
+            long sum = 0;
+            for (int slot = 0; slot < WINDOW_BUCKETS; slot++) {
+                if (bucket - buckets[slot] < WINDOW_BUCKETS) {
+                    sum += counts[slot];
+                }
+            }
+            return sum;
+        }
+    }
+
+    public static class Builder {
+        private final Keyring delegate;
+        private Duration negativeCacheTtl = Duration.ofSeconds(30);
+        private int maxTrackedKeyIds = 10_000;
+        private Duration failureWindow = Duration.ofMinutes(1);
+        private int breakerThreshold = 0;
+        private Duration breakerOpenDuration = Duration.ZERO;
+        private LongSupplier nanoTime = System::nanoTime;
+
+        private Builder(Keyring delegate) {
+            this.delegate = requireNonNull(delegate);
+        }
+
+        /**
+         * How long an unknown key id is remembered. {@link Duration#ZERO} disables the negative cache.
+         */
+        public Builder negativeCacheTtl(Duration ttl) {
+            if (ttl.isNegative()) {
+                throw new IllegalArgumentException("TTL must be non-negative but got " + ttl);
+            }
+            this.negativeCacheTtl = ttl;
+            return this;
+        }
+
+        /**
+         * Upper bound on the number of cached unknown key ids and of per-key-id failure counters.
+         */
+        public Builder maxTrackedKeyIds(int max) {
+            if (max < 1) {
+                throw new IllegalArgumentException("max tracked key ids must be positive but got " + max);
+            }
+            this.maxTrackedKeyIds = max;
+            return this;
+        }
+
+        /**
+         * Length of the sliding window of {@link GuardedKeyring#recentFailureCounts()}.
+         */
+        public Builder failureWindow(Duration window) {
+            if (window.isNegative() || window.isZero()) {
+                throw new IllegalArgumentException("failure window must be positive but got " + window);
+            }
+            this.failureWindow = window;
+            return this;
+        }
+
+        /**
+         * Opens the breaker for {@code openDuration} after {@code consecutiveErrors} delegate errors in a row.
+         */
+        public Builder breaker(int consecutiveErrors, Duration openDuration) {
+            if (consecutiveErrors < 1) {
+                throw new IllegalArgumentException("breaker threshold must be positive but got " + consecutiveErrors);
+            }
+            this.breakerThreshold = consecutiveErrors;
+            this.breakerOpenDuration = requireNonNull(openDuration);
+            return this;
+        }
+
+        Builder nanoTime(LongSupplier nanoTime) {
+            this.nanoTime = requireNonNull(nanoTime);
+            return this;
+        }
+
+        public GuardedKeyring build() {
+            return new GuardedKeyring(this);
+        }
+    }
+}
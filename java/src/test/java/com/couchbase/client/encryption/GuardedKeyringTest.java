@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.encryption.errors.DecryptionFailureException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class GuardedKeyringTest {
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private volatile boolean unavailable;
+
+    private final Keyring backend = keyId -> {
+        lookups.incrementAndGet();
+        if (unavailable) {
+            throw new IllegalStateException("KMS unavailable");
+        }
+        return EncryptionTestHelper.keyring().get(keyId);
+    };
+
+    private GuardedKeyring.Builder guarded() {
+        return GuardedKeyring.builder(backend).nanoTime(now::get);
+    }
+
+    @Test
+    void remembersUnknownKeyIdsUntilTtlExpires() {
+        GuardedKeyring keyring = guarded().negativeCacheTtl(Duration.ofSeconds(10)).build();
+
+        for (int i = 0; i < 100; i++) {
+            assertFalse(keyring.get("IncorrectKid").isPresent());
+        }
+        assertEquals(1, lookups.get());
+        assertEquals(100L, keyring.failureCounts().get("IncorrectKid"));
+
+        now.addAndGet(Duration.ofSeconds(11).toNanos());
+        assertFalse(keyring.get("IncorrectKid").isPresent());
+        assertEquals(2, lookups.get());
+
+        keyring.invalidateUnknownKeyIds();
+        assertFalse(keyring.get("IncorrectKid").isPresent());
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    void knownKeysAreNotCounted() {
+        GuardedKeyring keyring = guarded().build();
+
+        assertTrue(keyring.get("test-key").isPresent());
+        assertTrue(keyring.get("test-key").isPresent());
+        assertEquals(2, lookups.get());
+        assertTrue(keyring.failureCounts().isEmpty());
+    }
+
+    @Test
+    void boundsTrackedKeyIds() {
+        GuardedKeyring keyring = guarded().maxTrackedKeyIds(2).build();
+
+        for (int i = 0; i < 10; i++) {
+            keyring.get("retired-" + i);
+        }
+        Map<String, Long> counts = keyring.failureCounts();
+        assertEquals(3, counts.size());
+        assertEquals(1L, counts.get("retired-0"));
+        assertEquals(1L, counts.get("retired-1"));
+        assertEquals(8L, counts.get(GuardedKeyring.OTHER_KEY_IDS));
+    }
+
+    @Test
+    void fullNegativeCacheEvictsExpiredEntries() {
+        GuardedKeyring keyring = guarded().negativeCacheTtl(Duration.ofSeconds(10)).maxTrackedKeyIds(3).build();
+        for (int i = 0; i < 3; i++) {
+            assertFalse(keyring.get("retired-" + i).isPresent());
+        }
+        assertEquals(3, lookups.get());
+
+        now.addAndGet(Duration.ofHours(1).toNanos());
+        for (int i = 0; i < 100; i++) {
+            assertFalse(keyring.get("retired-new").isPresent());
+        }
+        assertEquals(4, lookups.get());
+    }
+
+    @Test
+    void fullNegativeCacheEvictsEntryClosestToExpiry() {
+        GuardedKeyring keyring = guarded().negativeCacheTtl(Duration.ofSeconds(10)).maxTrackedKeyIds(3).build();
+        for (int i = 0; i < 3; i++) {
+            assertFalse(keyring.get("retired-" + i).isPresent());
+            now.addAndGet(Duration.ofSeconds(1).toNanos());
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertFalse(keyring.get("retired-new").isPresent());
+        }
+        assertEquals(4, lookups.get());
+
+        // retired-0 was the oldest entry and was evicted; the others are still cached
+        keyring.get("retired-2");
+        assertEquals(4, lookups.get());
+        keyring.get("retired-0");
+        assertEquals(5, lookups.get());
+    }
+
+    @Test
+    void waveOfRetiredKidsEvictsOldestFirst() {
+        GuardedKeyring keyring = guarded().negativeCacheTtl(Duration.ofMinutes(1)).maxTrackedKeyIds(100).build();
+        for (int i = 0; i < 10_000; i++) {
+            assertFalse(keyring.get("retired-" + i).isPresent());
+        }
+        assertEquals(10_000, lookups.get());
+
+        for (int i = 9_900; i < 10_000; i++) {
+            keyring.get("retired-" + i);
+        }
+        assertEquals(10_000, lookups.get());
+        keyring.get("retired-0");
+        assertEquals(10_001, lookups.get());
+    }
+
+    @Test
+    void breakerFailsFastAfterConsecutiveErrors() {
+        GuardedKeyring keyring = guarded().breaker(3, Duration.ofSeconds(5)).build();
+        unavailable = true;
+
+        for (int i = 0; i < 3; i++) {
+            assertThrows(IllegalStateException.class, () -> keyring.get("test-key"));
+        }
+        assertEquals(3, lookups.get());
+        assertTrue(keyring.isBreakerOpen());
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> keyring.get("test-key"));
+        assertEquals("Keyring unavailable (circuit breaker open); cannot look up crypto key 'test-key'", e.getMessage());
+        assertEquals(3, lookups.get());
+
+        now.addAndGet(Duration.ofSeconds(6).toNanos());
+        unavailable = false;
+        assertTrue(keyring.get("test-key").isPresent());
+        assertFalse(keyring.isBreakerOpen());
+        assertEquals(4L, keyring.failureCounts().get("test-key"));
+    }
+
+    @Test
+    void breakerLetsOneProbeThroughAfterCoolDown() throws Exception {
+        CountDownLatch probeStarted = new CountDownLatch(1);
+        CountDownLatch releaseProbe = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Keyring slowBackend = keyId -> {
+            if (calls.incrementAndGet() <= 2) {
+                throw new IllegalStateException("KMS unavailable");
+            }
+            probeStarted.countDown();
+            try {
+                releaseProbe.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return EncryptionTestHelper.keyring().get(keyId);
+        };
+        GuardedKeyring keyring = GuardedKeyring.builder(slowBackend)
+            .nanoTime(now::get)
+            .breaker(2, Duration.ofSeconds(5))
+            .build();
+        for (int i = 0; i < 2; i++) {
+            assertThrows(IllegalStateException.class, () -> keyring.get("test-key"));
+        }
+
+        now.addAndGet(Duration.ofSeconds(6).toNanos());
+        AtomicReference<Optional<Keyring.Key>> probed = new AtomicReference<>();
+        Thread probe = new Thread(() -> probed.set(keyring.get("test-key")));
+        probe.setDaemon(true);
+        probe.start();
+        probeStarted.await();
+
+        for (int i = 0; i < 10; i++) {
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> keyring.get("test-key"));
+            assertEquals("Keyring unavailable (circuit breaker open); cannot look up crypto key 'test-key'", e.getMessage());
+        }
+        assertTrue(keyring.isBreakerOpen());
+
+        releaseProbe.countDown();
+        probe.join();
+        assertTrue(probed.get().isPresent());
+        assertFalse(keyring.isBreakerOpen());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void failedProbeReopensBreaker() {
+        GuardedKeyring keyring = guarded().breaker(3, Duration.ofSeconds(5)).build();
+        unavailable = true;
+        for (int i = 0; i < 3; i++) {
+            assertThrows(IllegalStateException.class, () -> keyring.get("test-key"));
+        }
+
+        now.addAndGet(Duration.ofSeconds(6).toNanos());
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> keyring.get("test-key"));
+        assertEquals("KMS unavailable", e.getMessage());
+        assertEquals(4, lookups.get());
+        assertTrue(keyring.isBreakerOpen());
+
+        assertThrows(IllegalStateException.class, () -> keyring.get("test-key"));
+        assertEquals(4, lookups.get());
+    }
+
+    @Test
+    void recentFailureCountsCoverTheWindow() {
+        GuardedKeyring keyring = guarded()
+            .negativeCacheTtl(Duration.ZERO)
+            .failureWindow(Duration.ofSeconds(10))
+            .build();
+        for (int i = 0; i < 5; i++) {
+            keyring.get("retired-key");
+        }
+        now.addAndGet(Duration.ofSeconds(5).toNanos());
+        for (int i = 0; i < 3; i++) {
+            keyring.get("retired-key");
+        }
+        keyring.get("other-key");
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("retired-key", 8L);
+        expected.put("other-key", 1L);
+        assertEquals(expected, keyring.recentFailureCounts());
+
+        now.addAndGet(Duration.ofSeconds(7).toNanos());
+        expected.put("retired-key", 3L);
+        assertEquals(expected, keyring.recentFailureCounts());
+
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        assertTrue(keyring.recentFailureCounts().isEmpty());
+        assertEquals(8L, keyring.failureCounts().get("retired-key"));
+    }
+
+    @Test
+    void breakerIsOffByDefault() {
+        GuardedKeyring keyring = guarded().build();
+        unavailable = true;
+
+        for (int i = 0; i < 10; i++) {
+            assertThrows(IllegalStateException.class, () -> keyring.get("test-key"));
+        }
+        assertEquals(10, lookups.get());
+        assertFalse(keyring.isBreakerOpen());
+    }
+
+    @Test
+    void keepsCryptoManagerErrorMessages() {
+        GuardedKeyring keyring = guarded().build();
+        AeadAes256CbcHmacSha512Provider provider = AeadAes256CbcHmacSha512Provider.builder()
+            .keyring(keyring)
+            .secureRandom(EncryptionTestHelper.secureRandom())
+            .build();
+        CryptoManager cryptoManager = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey("test-key"))
+            .build();
+
+        Map<String, Object> encrypted = new HashMap<>(cryptoManager.encrypt("\"secret\"".getBytes(UTF_8), null));
+        encrypted.put("kid", "IncorrectKid");
+
+        for (int i = 0; i < 2; i++) {
+            DecryptionFailureException e = assertThrows(DecryptionFailureException.class, () -> cryptoManager.decrypt(encrypted));
+            assertEquals("Decryption failed; Failed to locate crypto key 'IncorrectKid'", e.getMessage());
+        }
+        assertEquals(2L, keyring.failureCounts().get("IncorrectKid"));
+    }
+}
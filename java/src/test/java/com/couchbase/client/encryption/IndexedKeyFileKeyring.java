@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A {@link Keyring} backed by an indexed, memory-mapped key file.
+ * <p>
+ * Opening the file only reads its fixed-size header. Key ids are located by binary search
+ * over a sorted index, and each key is unwrapped with its protection password on first use.
+ * Unlike {@link KeyStore#load}, startup cost does not depend on the number of keys, and only
+ * keys that are actually used are held in memory.
+ * <p>
+ * File layout (all integers big-endian):
+ * <pre>
+ * header:  magic | version | flags | entry count | PBKDF2 iterations
+ * index:   entry count x (id offset | id length | record offset | record length), sorted by UTF-8 id bytes
+ * data:    id bytes and records; a record is salt(16) | iv(12) | AES-GCM(key bytes, aad = id bytes)
+ * </pre>
+ * Use {@link #convert(KeyStore, Function, Path)} to build a key file from an existing JCEKS store.
+ * Key store aliases are case-insensitive, so a converted file stores lowercase ids and
+ * lowercases key ids on lookup, resolving the same kids as {@link KeyStoreKeyring}.
+ */
+public class IndexedKeyFileKeyring implements Keyring, Closeable {
+    static final int MAGIC = 0x43424b46; // "CBKF"
+    static final int VERSION = 2;
+    static final int DEFAULT_ITERATIONS = 65536;
+    // Ids are stored lowercased and matched case-insensitively, like key store aliases
+    static final int FLAG_CASE_INSENSITIVE_IDS = 1;
+
+    private static final int HEADER_SIZE = 20;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final boolean caseInsensitiveIds;
+    private final int entryCount;
+    private final int iterations;
+    private final Function<String, String> passwordProvider;
+    // Keyed by stored id, so every spelling of a case-insensitive id shares one unwrap
+    private final Map<String, UnwrappedKey> unwrapped = new ConcurrentHashMap<>();
+
+    private IndexedKeyFileKeyring(FileChannel channel, Function<String, String> passwordProvider) throws IOException {
+        this.channel = channel;
+        this.passwordProvider = requireNonNull(passwordProvider);
+        this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an indexed key file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported indexed key file version " + buffer.getInt(4));
+        }
+        this.caseInsensitiveIds = (buffer.getInt(8) & FLAG_CASE_INSENSITIVE_IDS) != 0;
+        this.entryCount = buffer.getInt(12);
+        this.iterations = buffer.getInt(16);
+        if (iterations <= 0 || entryCount < 0 || HEADER_SIZE + (long) entryCount * INDEX_ENTRY_SIZE > buffer.capacity()) {
+            throw new IOException("Indexed key file is truncated");
+        }
+    }
+
+    /**
+     * Maps the key file. Keys are unwrapped on first use with the password returned by
+     * the given function for the key's id.
+     */
+    public static IndexedKeyFileKeyring open(Path file, Function<String, String> passwordProvider) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new IndexedKeyFileKeyring(channel, passwordProvider);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Optional<Keyring.Key> get(String keyId) {
+        if (keyId == null) {
+            return Optional.empty();
+        }
+        String storedId = caseInsensitiveIds ? normalizeAlias(keyId) : keyId;
+        UnwrappedKey key = unwrapped.get(storedId);
+        if (key == null) {
+            int entry = find(buffer.duplicate(), storedId.getBytes(UTF_8));
+            if (entry < 0) {
+                return Optional.empty();
+            }
+            key = unwrapped.computeIfAbsent(storedId, id -> new UnwrappedKey(entry, id));
+        }
+        return Optional.of(new Keyring.Key(keyId, key.bytes()));
+    }
+
+    /**
+     * Number of keys in the file.
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int find(ByteBuffer view, byte[] keyId) {
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareId(view, mid, keyId);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int compareId(ByteBuffer view, int entry, byte[] keyId) {
+        int indexPos = HEADER_SIZE + entry * INDEX_ENTRY_SIZE;
+        int idOffset = view.getInt(indexPos);
+        int idLength = view.getInt(indexPos + 4);
+        int len = Math.min(idLength, keyId.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = Integer.compare(view.get(idOffset + i) & 0xff, keyId[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(idLength, keyId.length);
+    }
+
+    private byte[] unwrap(ByteBuffer view, int entry, String keyId) {
+        int indexPos = HEADER_SIZE + entry * INDEX_ENTRY_SIZE;
+        int recordOffset = view.getInt(indexPos + 8);
+        int recordLength = view.getInt(indexPos + 12);
+
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] iv = new byte[IV_LENGTH];
+        byte[] wrapped = new byte[recordLength - SALT_LENGTH - IV_LENGTH];
+        ((Buffer) view).position(recordOffset); // cast keeps the Java 8 method signature
+        view.get(salt).get(iv).get(wrapped);
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, derive(passwordFor(passwordProvider, keyId), salt, iterations),
+                new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(keyId.getBytes(UTF_8));
+            return cipher.doFinal(wrapped);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to unwrap crypto key '" + keyId + "'", e);
+        }
+    }
+
+    /**
+     * A key unwrapped on first use. Unwrapping runs PBKDF2, so it is done outside the map,
+     * and only callers that need this key wait for it. A failed unwrap is retried on the next call.
+     */
+    private class UnwrappedKey {
+        private final int entry;
+        private final String storedId;
+        private volatile byte[] bytes;
+
+        UnwrappedKey(int entry, String storedId) {
+            this.entry = entry;
+            this.storedId = storedId;
+        }
+
+        byte[] bytes() {
+            byte[] result = bytes;
+            if (result == null) {
+                synchronized (this) {
+                    result = bytes;
+                    if (result == null) {
+                        bytes = result = unwrap(buffer.duplicate(), entry, storedId);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static SecretKey derive(char[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] derived = factory.generateSecret(new PBEKeySpec(password, salt, iterations, 256)).getEncoded();
+        return new SecretKeySpec(derived, "AES");
+    }
+
+    private static char[] passwordFor(Function<String, String> passwordProvider, String keyId) {
+        String password = passwordProvider.apply(keyId);
+        if (password == null) {
+            throw new IllegalArgumentException("No protection password for crypto key '" + keyId + "'");
+        }
+        return password.toCharArray();
+    }
+
+    /**
+     * Writes the given keys to a new key file, protecting each one with the password returned
+     * by the given function for its id. The target is replaced atomically.
+     */
+    public static void write(Path target, Map<String, byte[]> keys, Function<String, String> passwordProvider) throws IOException {
+        write(target, keys, passwordProvider, false, DEFAULT_ITERATIONS, new SecureRandom());
+    }
+
+    static void write(Path target, Map<String, byte[]> keys, Function<String, String> passwordProvider,
+                      boolean caseInsensitiveIds, int iterations, SecureRandom random) throws IOException {
+        if (caseInsensitiveIds) {
+            keys = normalizeAliases(keys);
+        }
+        // Records sorted by unsigned UTF-8 id bytes, the order used by the binary search
+        TreeMap<byte[], byte[]> records = new TreeMap<>(IndexedKeyFileKeyring::compareUnsigned);
+        try {
+            for (Map.Entry<String, byte[]> e : keys.entrySet()) {
+                byte[] id = e.getKey().getBytes(UTF_8);
+                byte[] salt = new byte[SALT_LENGTH];
+                byte[] iv = new byte[IV_LENGTH];
+                random.nextBytes(salt);
+                random.nextBytes(iv);
+
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, derive(passwordFor(passwordProvider, e.getKey()), salt, iterations),
+                    new GCMParameterSpec(TAG_BITS, iv));
+                cipher.updateAAD(id);
+                byte[] wrapped = cipher.doFinal(e.getValue());
+
+                records.put(id, ByteBuffer.allocate(SALT_LENGTH + IV_LENGTH + wrapped.length)
+                    .put(salt).put(iv).put(wrapped).array());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to wrap crypto key", e);
+        }
+
+        int dataStart = HEADER_SIZE + records.size() * INDEX_ENTRY_SIZE;
+        int size = dataStart;
+        for (Map.Entry<byte[], byte[]> e : records.entrySet()) {
+            size += e.getKey().length + e.getValue().length;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC).putInt(VERSION).putInt(caseInsensitiveIds ? FLAG_CASE_INSENSITIVE_IDS : 0)
+            .putInt(records.size()).putInt(iterations);
+        int dataPos = dataStart;
+        for (Map.Entry<byte[], byte[]> e : records.entrySet()) {
+            int idLength = e.getKey().length;
+            out.putInt(dataPos).putInt(idLength).putInt(dataPos + idLength).putInt(e.getValue().length);
+            dataPos += idLength + e.getValue().length;
+        }
+        for (Map.Entry<byte[], byte[]> e : records.entrySet()) {
+            out.put(e.getKey()).put(e.getValue());
+        }
+
+        Path absoluteTarget = target.toAbsolutePath();
+        Path temp = Files.createTempFile(absoluteTarget.getParent(), absoluteTarget.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, out.array());
+            Files.move(temp, absoluteTarget, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Converts the secret keys of an existing key store (for example a JCEKS file used with
+     * {@link KeyStoreKeyring}) into a key file. Each key keeps its key store protection password.
+     */
+    public static void convert(KeyStore keyStore, Function<String, String> passwordProvider, Path target) throws IOException {
+        write(target, secretKeys(keyStore, passwordProvider), passwordProvider, true, DEFAULT_ITERATIONS, new SecureRandom());
+    }
+
+    /**
+     * Returns the secret keys in the given key store, by alias.
+     */
+    static Map<String, byte[]> secretKeys(KeyStore keyStore, Function<String, String> passwordProvider) {
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        try {
+            Enumeration<String> aliases = keyStore.aliases();
+            while (aliases.hasMoreElements()) {
+                String alias = aliases.nextElement();
+                if (!keyStore.entryInstanceOf(alias, KeyStore.SecretKeyEntry.class)) {
+                    continue;
+                }
+                keys.put(alias, keyStore.getKey(alias, passwordFor(passwordProvider, alias)).getEncoded());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to read keys from key store", e);
+        }
+        return keys;
+    }
+
+    /**
+     * Folds a key id the way JCEKS and PKCS12 key stores fold aliases.
+     */
+    static String normalizeAlias(String keyId) {
+        return keyId.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the keys with normalized ids.
+     *
+     * @throws IllegalArgumentException if two ids differ only in case
+     */
+    static Map<String, byte[]> normalizeAliases(Map<String, byte[]> keys) {
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> e : keys.entrySet()) {
+            if (result.put(normalizeAlias(e.getKey()), e.getValue()) != null) {
+                throw new IllegalArgumentException("Crypto key ids differ only in case: '" + e.getKey() + "'");
+            }
+        }
+        return result;
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    @Override
+    public String toString() {
+        return "IndexedKeyFileKeyring{entries=" + entryCount + "}";
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexedKeyFileKeyringTest {
+    @TempDir
+    Path tempDir;
+
+    private static byte[] fakeKey(int len, int seed) {
+        byte[] result = new byte[len];
+        for (int i = 0; i < len; i++) {
+            result[i] = (byte) (i + seed);
+        }
+        return result;
+    }
+
+    @Test
+    void convertsJceksKeyStore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JCEKS");
+        keyStore.load(null);
+        KeyStoreKeyring.setSecretKey(keyStore, "my-key", fakeKey(64, 0), "protection-password".toCharArray());
+        KeyStoreKeyring.setSecretKey(keyStore, "other-key", fakeKey(64, 1), "protection-password".toCharArray());
+        KeyStoreKeyring.setSecretKey(keyStore, "aes256Key", fakeKey(32, 2), "protection-password".toCharArray());
+        KeyStoreKeyring keyStoreKeyring = new KeyStoreKeyring(keyStore, keyName -> "protection-password");
+
+        Path keyFile = tempDir.resolve("MyKeyFile.cbkf");
+        IndexedKeyFileKeyring.convert(keyStore, keyName -> "protection-password", keyFile);
+
+        try (IndexedKeyFileKeyring keyring = IndexedKeyFileKeyring.open(keyFile, keyName -> "protection-password")) {
+            assertEquals(3, keyring.size());
+            // Key store aliases are case-insensitive; the original mixed-case id must still resolve
+            for (String keyId : new String[]{"my-key", "other-key", "aes256Key", "aes256key", "MY-KEY"}) {
+                assertArrayEquals(keyStoreKeyring.getOrThrow(keyId).bytes(), keyring.getOrThrow(keyId).bytes());
+                assertEquals(keyId, keyring.getOrThrow(keyId).id());
+            }
+            assertFalse(keyring.get("IncorrectKid").isPresent());
+            assertFalse(keyring.get(null).isPresent());
+        }
+    }
+
+    @Test
+    void canEncryptAndDecrypt() throws Exception {
+        Path keyFile = tempDir.resolve("keys.cbkf");
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        keys.put("my-key", fakeKey(64, 0));
+        IndexedKeyFileKeyring.write(keyFile, keys, keyName -> "protection-password");
+
+        try (IndexedKeyFileKeyring keyring = IndexedKeyFileKeyring.open(keyFile, keyName -> "protection-password")) {
+            AeadAes256CbcHmacSha512Provider provider = AeadAes256CbcHmacSha512Provider.builder()
+                .keyring(keyring)
+                .build();
+            CryptoManager cryptoManager = DefaultCryptoManager.builder()
+                .decrypter(provider.decrypter())
+                .defaultEncrypter(provider.encrypterForKey("my-key"))
+                .build();
+
+            byte[] plaintext = "\"The enemy knows the system.\"".getBytes(UTF_8);
+            assertArrayEquals(plaintext, cryptoManager.decrypt(cryptoManager.encrypt(plaintext, null)));
+            // Ids written directly are matched exactly
+            assertFalse(keyring.get("MY-KEY").isPresent());
+        }
+    }
+
+    @Test
+    void findsKeysAmongThousands() throws Exception {
+        Path keyFile = tempDir.resolve("tenants.cbkf");
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            keys.put("tenant-" + i, fakeKey(64, i));
+        }
+        // a single PBKDF2 iteration keeps the test fast; production files use the default
+        IndexedKeyFileKeyring.write(keyFile, keys, keyName -> "pw-" + keyName, false, 1, new SecureRandom());
+
+        try (IndexedKeyFileKeyring keyring = IndexedKeyFileKeyring.open(keyFile, keyName -> "pw-" + keyName)) {
+            assertEquals(5000, keyring.size());
+            for (int i = 0; i < 5000; i += 499) {
+                assertArrayEquals(keys.get("tenant-" + i), keyring.getOrThrow("tenant-" + i).bytes());
+            }
+            assertFalse(keyring.get("tenant-5000").isPresent());
+            assertFalse(keyring.get("tenant-").isPresent());
+        }
+    }
+
+    @Test
+    void unwrapsEachStoredKeyOnce() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JCEKS");
+        keyStore.load(null);
+        KeyStoreKeyring.setSecretKey(keyStore, "aes256Key", fakeKey(32, 2), "protection-password".toCharArray());
+        Path keyFile = tempDir.resolve("MyKeyFile.cbkf");
+        IndexedKeyFileKeyring.convert(keyStore, keyName -> "protection-password", keyFile);
+
+        AtomicInteger unwraps = new AtomicInteger();
+        try (IndexedKeyFileKeyring keyring = IndexedKeyFileKeyring.open(keyFile, keyName -> {
+            unwraps.incrementAndGet();
+            return "protection-password";
+        })) {
+            for (String keyId : new String[]{"aes256Key", "aes256key", "AES256KEY", "aes256Key"}) {
+                assertArrayEquals(fakeKey(32, 2), keyring.getOrThrow(keyId).bytes());
+                assertEquals(keyId, keyring.getOrThrow(keyId).id());
+            }
+            assertEquals(1, unwraps.get());
+        }
+    }
+
+    @Test
+    void wrongPasswordFailsOnFirstUse() throws Exception {
+        Path keyFile = tempDir.resolve("keys.cbkf");
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        keys.put("my-key", fakeKey(64, 0));
+        IndexedKeyFileKeyring.write(keyFile, keys, keyName -> "protection-password");
+
+        try (IndexedKeyFileKeyring keyring = IndexedKeyFileKeyring.open(keyFile, keyName -> "wrong-password")) {
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> keyring.get("my-key"));
+            assertEquals("Failed to unwrap crypto key 'my-key'", e.getMessage());
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() throws Exception {
+        Path notAKeyFile = tempDir.resolve("MyKeystoreFile.jceks");
+        Files.write(notAKeyFile, "not a key file".getBytes(UTF_8));
+
+        IOException e = assertThrows(IOException.class,
+            () -> IndexedKeyFileKeyring.open(notAKeyFile, keyName -> "protection-password"));
+        assertEquals("Not an indexed key file", e.getMessage());
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.deps.com.fasterxml.jackson.core.JsonFactory;
+import com.couchbase.client.core.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.core.deps.com.fasterxml.jackson.core.JsonToken;
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.ReactiveCluster;
+import com.couchbase.client.java.ReactiveCollection;
+import com.couchbase.client.java.codec.RawJsonTranscoder;
+import com.couchbase.client.java.json.JacksonTransformers;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static com.couchbase.client.java.kv.GetOptions.getOptions;
+import static com.couchbase.client.java.query.QueryOptions.queryOptions;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Audits every encrypted field in a bucket: each envelope must have alg, kid and ciphertext,
+ * and its tag and padding must check out under the current keyring. Nothing is decrypted.
+ * <p>
+ * Documents are parsed as a token stream and processed in parallel batches whose fields are
+ * verified together with {@link AeadEnvelopeVerifier#verifyAll}; the report keeps only
+ * counters per (result, kid) for at most {@value #MAX_KIDS_PER_RESULT} kids per result, and
+ * a few sample document ids per group, so memory stays bounded however many documents are scanned.
+ */
+public class IntegrityAuditScanner {
+    public static final String NO_KID = "<none>";
+    /**
+     * Kid under which a result counts fields once it already has {@value #MAX_KIDS_PER_RESULT} kids.
+     */
+    public static final String OTHER_KIDS = "*";
+    /**
+     * Timeout of the id query when none is given. The query stays open until the last id has been read.
+     */
+    public static final Duration DEFAULT_QUERY_TIMEOUT = Duration.ofHours(24);
+    static final int SAMPLES_PER_GROUP = 5;
+    static final int MAX_KIDS_PER_RESULT = 1000;
+    // Documents verified together. With a prefetch of one batch per rail, at most about
+    // parallelism x 2 x BATCH_SIZE raw documents are held at once.
+    static final int BATCH_SIZE = 32;
+
+    /**
+     * Result for a document that is not valid JSON.
+     */
+    public static final String MALFORMED_DOCUMENT = "MALFORMED_DOCUMENT";
+    /**
+     * Result for an encrypted field name whose value is not an object, such as plaintext
+     * left under the prefix by a bad migration, or null.
+     */
+    public static final String NOT_AN_ENVELOPE = "NOT_AN_ENVELOPE";
+    /**
+     * Result for a document that could not be fetched, for example because the get timed out.
+     */
+    public static final String FETCH_FAILED = "FETCH_FAILED";
+
+    private final CryptoManager cryptoManager;
+    private final AeadEnvelopeVerifier verifier;
+    private final JsonFactory factory = JacksonTransformers.MAPPER.getFactory();
+
+    /**
+     * @param cryptoManager decides which field names are encrypted fields
+     * @param keyring the keys envelopes must authenticate under
+     */
+    public IntegrityAuditScanner(CryptoManager cryptoManager, Keyring keyring) {
+        this.cryptoManager = requireNonNull(cryptoManager);
+        this.verifier = new AeadEnvelopeVerifier(keyring);
+    }
+
+    /**
+     * Scans every document in the collection, fetching up to {@code parallelism} documents at a time.
+     * The id query, a single N1QL query whose rows are streamed, times out after
+     * {@link #DEFAULT_QUERY_TIMEOUT}.
+     */
+    public Mono<Report> scan(ReactiveCluster cluster, ReactiveCollection collection, int parallelism) {
+        return scan(cluster, collection, parallelism, DEFAULT_QUERY_TIMEOUT);
+    }
+
+    /**
+     * Like {@link #scan(ReactiveCluster, ReactiveCollection, int)}, with the given timeout for the id query.
+     */
+    public Mono<Report> scan(ReactiveCluster cluster, ReactiveCollection collection, int parallelism, Duration queryTimeout) {
+        Flux<String> ids = cluster
+            .query("SELECT RAW META().id FROM `" + collection.bucketName() + "`", queryOptions().timeout(queryTimeout))
+            .flatMapMany(result -> result.rowsAs(String.class));
+        return scan(ids, id -> collection.get(id, getOptions().transcoder(RawJsonTranscoder.INSTANCE))
+            .map(result -> result.contentAs(byte[].class)), parallelism);
+    }
+
+    /**
+     * Fetches and audits each document. Documents removed since their id was read are skipped;
+     * any other fetch error is recorded as {@link #FETCH_FAILED} instead of ending the scan.
+     */
+    Mono<Report> scan(Flux<String> ids, Function<String, Mono<byte[]>> fetch, int parallelism) {
+        Report report = new Report();
+        Flux<Map.Entry<String, byte[]>> documents = ids
+            .flatMap(id -> fetch.apply(id)
+                .map(content -> entry(id, content))
+                .onErrorResume(DocumentNotFoundException.class, e -> Mono.empty())
+                .onErrorResume(e -> {
+                    report.record(FETCH_FAILED, NO_KID, id);
+                    return Mono.empty();
+                }), parallelism);
+        return scan(documents, parallelism, report);
+    }
+
+    /**
+     * Audits the given (document id, raw JSON) pairs on {@code parallelism} rails.
+     */
+    public Mono<Report> scan(Flux<? extends Map.Entry<String, byte[]>> documents, int parallelism) {
+        return scan(documents, parallelism, new Report());
+    }
+
+    private Mono<Report> scan(Flux<? extends Map.Entry<String, byte[]>> documents, int parallelism, Report report) {
+        return documents
+            .buffer(BATCH_SIZE)
+            // Small prefetches keep memory bounded when verification is slower than fetching
+            .parallel(parallelism, 1)
+            .runOn(Schedulers.parallel(), 1)
+            .doOnNext(batch -> audit(report, batch))
+            .sequential()
+            .then(Mono.just(report));
+    }
+
+    /**
+     * Audits one document, adding its results to the report. Safe to call from several threads.
+     */
+    public void audit(Report report, String documentId, byte[] content) {
+        audit(report, Collections.singletonList(entry(documentId, content)));
+    }
+
+    /**
+     * Audits a batch of (document id, raw JSON) pairs, verifying all their fields together
+     * so each kid is resolved once per batch. Safe to call from several threads.
+     */
+    public void audit(Report report, List<? extends Map.Entry<String, byte[]>> documents) {
+        List<Map<String, Object>> envelopes = new ArrayList<>();
+        List<String> envelopeDocumentIds = new ArrayList<>();
+        for (Map.Entry<String, byte[]> document : documents) {
+            report.documents.increment();
+            try (JsonParser parser = factory.createParser(document.getValue())) {
+                JsonToken token;
+                while ((token = parser.nextToken()) != null) {
+                    if (token != JsonToken.FIELD_NAME || !cryptoManager.isMangled(parser.getCurrentName())) {
+                        continue;
+                    }
+                    if (parser.nextToken() == JsonToken.START_OBJECT) {
+                        @SuppressWarnings("unchecked")
+                        Map<String, Object> encrypted = parser.readValueAs(Map.class);
+                        envelopes.add(encrypted);
+                        envelopeDocumentIds.add(document.getKey());
+                    } else {
+                        parser.skipChildren();
+                        report.record(NOT_AN_ENVELOPE, NO_KID, document.getKey());
+                    }
+                }
+            } catch (IOException e) {
+                report.record(MALFORMED_DOCUMENT, NO_KID, document.getKey());
+            }
+        }
+
+        List<AeadEnvelopeVerifier.Result> results = verifier.verifyAll(envelopes);
+        for (int i = 0; i < envelopes.size(); i++) {
+            Object kid = envelopes.get(i).get("kid");
+            report.record(results.get(i).name(), kid instanceof String ? (String) kid : NO_KID, envelopeDocumentIds.get(i));
+        }
+    }
+
+    private static Map.Entry<String, byte[]> entry(String id, byte[] content) {
+        return new AbstractMap.SimpleImmutableEntry<>(id, content);
+    }
+
+    /**
+     * Counts of audited fields grouped by result and kid. Every result other than
+     * {@code VALID} is a failure. Kids beyond the first {@value #MAX_KIDS_PER_RESULT} of a
+     * result are counted under {@link #OTHER_KIDS}.
+     */
+    public static class Report {
+        private final LongAdder documents = new LongAdder();
+        private final Map<String, Map<String, Group>> groups = new ConcurrentHashMap<>();
+        private final int maxKidsPerResult;
+
+        public Report() {
+            this(MAX_KIDS_PER_RESULT);
+        }
+
+        Report(int maxKidsPerResult) {
+            this.maxKidsPerResult = maxKidsPerResult;
+        }
+
+        private void record(String result, String kid, String documentId) {
+            Map<String, Group> byKid = groups.computeIfAbsent(result, r -> new ConcurrentHashMap<>());
+            Group group = byKid.get(kid);
+            if (group == null) {
+                String trackedKid = byKid.size() < maxKidsPerResult ? kid : OTHER_KIDS;
+                group = byKid.computeIfAbsent(trackedKid, k -> new Group());
+            }
+            group.add(documentId);
+        }
+
+        public long documentsScanned() {
+            return documents.sum();
+        }
+
+        public long fields(String result) {
+            return groups.getOrDefault(result, Collections.emptyMap()).values().stream()
+                .mapToLong(group -> group.count.sum())
+                .sum();
+        }
+
+        public long failedFields() {
+            return groups.keySet().stream()
+                .filter(result -> !result.equals(AeadEnvelopeVerifier.Result.VALID.name()))
+                .mapToLong(this::fields)
+                .sum();
+        }
+
+        /**
+         * Returns the field count per kid for the given result.
+         */
+        public Map<String, Long> byKid(String result) {
+            Map<String, Long> counts = new TreeMap<>();
+            groups.getOrDefault(result, Collections.emptyMap())
+                .forEach((kid, group) -> counts.put(kid, group.count.sum()));
+            return counts;
+        }
+
+        /**
+         * Returns up to a few ids of documents that had the given result for the given kid.
+         */
+        public List<String> sampleDocumentIds(String result, String kid) {
+            Group group = groups.getOrDefault(result, Collections.emptyMap()).get(kid);
+            return group == null ? Collections.emptyList() : group.samples();
+        }
+
+        public JsonObject toJson() {
+            JsonObject results = JsonObject.create();
+            new TreeMap<>(groups).forEach((result, byKid) -> {
+                JsonObject kids = JsonObject.create();
+                new TreeMap<>(byKid).forEach((kid, group) -> kids.put(kid, JsonObject.create()
+                    .put("count", group.count.sum())
+                    .put("samples", JsonArray.from(group.samples()))));
+                results.put(result, kids);
+            });
+            return JsonObject.create()
+                .put("documents", documentsScanned())
+                .put("failedFields", failedFields())
+                .put("results", results);
+        }
+
+        @Override
+        public String toString() {
+            return toJson().toString();
+        }
+    }
+
+    private static class Group {
+        private final LongAdder count = new LongAdder();
+        private final List<String> samples = new ArrayList<>(SAMPLES_PER_GROUP);
+
+        void add(String documentId) {
+            count.increment();
+            synchronized (samples) {
+                if (samples.size() < SAMPLES_PER_GROUP && !samples.contains(documentId)) {
+                    samples.add(documentId);
+                }
+            }
+        }
+
+        List<String> samples() {
+            synchronized (samples) {
+                return new ArrayList<>(samples);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.core.error.UnambiguousTimeoutException;
+import com.couchbase.client.java.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static com.couchbase.client.encryption.AeadEnvelopeVerifier.Result.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntegrityAuditScannerTest {
+    private final CryptoManager cryptoManager;
+    private final IntegrityAuditScanner scanner;
+
+    public IntegrityAuditScannerTest() {
+        AeadAes256CbcHmacSha512Provider provider = EncryptionTestHelper.provider();
+        cryptoManager = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey("test-key"))
+            .build();
+        scanner = new IntegrityAuditScanner(cryptoManager, EncryptionTestHelper.keyring());
+    }
+
+    private JsonObject encryptedDocument() {
+        JsonObject nested = JsonObject.create();
+        nested.crypto(cryptoManager).put("inner", "nested secret");
+        JsonObject document = JsonObject.create()
+            .put("unEncrypted", true)
+            .put("nested", nested);
+        document.crypto(cryptoManager).put("encryptedValue", "This is encrypted Value");
+        return document;
+    }
+
+    private Map.Entry<String, byte[]> mangled(String id, Consumer<JsonObject> mangler) {
+        JsonObject document = encryptedDocument();
+        mangler.accept(document.getObject("encrypted$encryptedValue"));
+        return entry(id, document.toString());
+    }
+
+    private static Map.Entry<String, byte[]> entry(String id, String content) {
+        return new AbstractMap.SimpleImmutableEntry<>(id, content.getBytes(UTF_8));
+    }
+
+    @Test
+    void knownCiphertextAuthenticates() {
+        AeadEnvelopeVerifier verifier = new AeadEnvelopeVerifier(EncryptionTestHelper.keyring());
+        JsonObject encrypted = JsonObject.create()
+            .put("alg", "AEAD_AES_256_CBC_HMAC_SHA512")
+            .put("kid", "test-key")
+            .put("ciphertext", "GvOMLcK5b/3YZpQJI0G8BLm98oj20ZLdqKDV3MfTuGlWL4R5p5Deykuv2XLW4LcDvnOkmhuUSRbQ8QVEmbjq43XHdOm3ColJ6LzoaAtJihk=");
+        assertEquals(VALID, verifier.verify(encrypted.toMap()));
+
+        encrypted.put("ciphertext", "HvOMLcK5b/3YZpQJI0G8BLm98oj20ZLdqKDV3MfTuGlWL4R5p5Deykuv2XLW4LcDvnOkmhuUSRbQ8QVEmbjq43XHdOm3ColJ6LzoaAtJihk=");
+        assertEquals(AUTHENTICATION_FAILED, verifier.verify(encrypted.toMap()));
+    }
+
+    @Test
+    void reportsFailuresByTypeAndKid() {
+        List<Map.Entry<String, byte[]>> documents = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            documents.add(entry("valid-" + i, encryptedDocument().toString()));
+        }
+        documents.add(mangled("missingAlg", e -> e.removeKey("alg")));
+        documents.add(mangled("legacyAlg", e -> e.put("alg", "AES-256-HMAC-SHA256")));
+        documents.add(mangled("missingKid", e -> e.removeKey("kid")));
+        documents.add(mangled("retiredKid-1", e -> e.put("kid", "retired-key")));
+        documents.add(mangled("retiredKid-2", e -> e.put("kid", "retired-key")));
+        documents.add(mangled("missingCiphertext", e -> e.removeKey("ciphertext")));
+        documents.add(mangled("truncated", e -> e.put("ciphertext", e.getString("ciphertext").substring(0, 40))));
+        documents.add(mangled("tampered", e -> {
+            char[] ciphertext = e.getString("ciphertext").toCharArray();
+            ciphertext[30] = ciphertext[30] == 'A' ? 'B' : 'A';
+            e.put("ciphertext", new String(ciphertext));
+        }));
+        documents.add(entry("notJson", "{\"encrypted$broken\": {"));
+
+        IntegrityAuditScanner.Report report = scanner.scan(Flux.fromIterable(documents), 4).block();
+
+        assertEquals(109, report.documentsScanned());
+        // one nested field per document, plus the top-level field of the 100 untouched documents
+        assertEquals(208, report.fields(VALID.name()));
+        assertEquals(Collections.singletonMap("test-key", 208L), report.byKid(VALID.name()));
+        assertEquals(1, report.fields(MISSING_ALGORITHM.name()));
+        assertEquals(1, report.fields(UNSUPPORTED_ALGORITHM.name()));
+        assertEquals(Collections.singletonMap(IntegrityAuditScanner.NO_KID, 1L), report.byKid(MISSING_KID.name()));
+        assertEquals(Collections.singletonMap("retired-key", 2L), report.byKid(UNKNOWN_KID.name()));
+        assertEquals(1, report.fields(MISSING_CIPHERTEXT.name()));
+        assertEquals(1, report.fields(MALFORMED_CIPHERTEXT.name()));
+        assertEquals(Collections.singletonList("tampered"), report.sampleDocumentIds(AUTHENTICATION_FAILED.name(), "test-key"));
+        assertEquals(1, report.fields(IntegrityAuditScanner.MALFORMED_DOCUMENT));
+        assertEquals(9, report.failedFields());
+    }
+
+    @Test
+    void limitsSamplesPerGroup() {
+        List<Map.Entry<String, byte[]>> documents = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            documents.add(mangled("retired-" + i, e -> e.put("kid", "retired-key")));
+        }
+
+        IntegrityAuditScanner.Report report = scanner.scan(Flux.fromIterable(documents), 2).block();
+
+        assertEquals(50, report.fields(UNKNOWN_KID.name()));
+        assertEquals(IntegrityAuditScanner.SAMPLES_PER_GROUP, report.sampleDocumentIds(UNKNOWN_KID.name(), "retired-key").size());
+        assertEquals(50, report.toJson().getObject("results").getObject(UNKNOWN_KID.name())
+            .getObject("retired-key").getLong("count"));
+    }
+
+    @Test
+    void reportsMangledFieldsThatAreNotEnvelopes() {
+        String envelope = encryptedDocument().getObject("encrypted$encryptedValue").toString();
+        List<Map.Entry<String, byte[]>> documents = Collections.singletonList(entry("badMigration",
+            "{\"encrypted$ssn\": \"123-45-6789\", \"encrypted$x\": null, \"encrypted$list\": [" + envelope + "],"
+                + " \"after\": {\"encrypted$ok\": " + envelope + "}}"));
+
+        IntegrityAuditScanner.Report report = scanner.scan(Flux.fromIterable(documents), 1).block();
+
+        assertEquals(Collections.singletonMap(IntegrityAuditScanner.NO_KID, 3L), report.byKid(IntegrityAuditScanner.NOT_AN_ENVELOPE));
+        assertEquals(Collections.singletonList("badMigration"),
+            report.sampleDocumentIds(IntegrityAuditScanner.NOT_AN_ENVELOPE, IntegrityAuditScanner.NO_KID));
+        // the array under the mangled name is not searched for envelopes, but later fields are
+        assertEquals(1, report.fields(VALID.name()));
+        assertEquals(3, report.failedFields());
+    }
+
+    @Test
+    void foldsKidsBeyondTheLimitIntoOther() {
+        IntegrityAuditScanner.Report report = new IntegrityAuditScanner.Report(2);
+        for (int i = 0; i < 5; i++) {
+            String kid = "tenant-" + i;
+            scanner.audit(report, Collections.singletonList(mangled("doc-" + i, e -> e.put("kid", kid))));
+        }
+
+        Map<String, Long> byKid = report.byKid(UNKNOWN_KID.name());
+        assertEquals(3, byKid.size());
+        assertEquals(1L, byKid.get("tenant-0"));
+        assertEquals(1L, byKid.get("tenant-1"));
+        assertEquals(3L, byKid.get(IntegrityAuditScanner.OTHER_KIDS));
+        assertEquals(5, report.fields(UNKNOWN_KID.name()));
+    }
+
+    @Test
+    void recordsFetchFailuresWithoutEndingTheScan() {
+        Map<String, Mono<byte[]>> bucket = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            bucket.put("doc-" + i, Mono.just(encryptedDocument().toString().getBytes(UTF_8)));
+        }
+        bucket.put("removed", Mono.error(new DocumentNotFoundException(null)));
+        bucket.put("slow", Mono.error(new UnambiguousTimeoutException("GetRequest timed out", null)));
+
+        IntegrityAuditScanner.Report report = scanner.scan(Flux.fromIterable(bucket.keySet()), bucket::get, 4).block();
+
+        assertEquals(20, report.documentsScanned());
+        assertEquals(40, report.fields(VALID.name()));
+        assertEquals(Collections.singletonList("slow"),
+            report.sampleDocumentIds(IntegrityAuditScanner.FETCH_FAILED, IntegrityAuditScanner.NO_KID));
+        assertEquals(1, report.failedFields());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A {@link CryptoManager} that recognises several encrypted field name prefixes at once.
+ * <p>
+ * New fields are always written with the canonical prefix. Field names are matched against
+ * all recognised prefixes with a precomputed trie, so the cost of a match depends on the
+ * prefix length rather than on how many prefixes there are.
+ * <p>
+ * {@link com.couchbase.client.java.json.JsonObjectCrypto} and {@code @Encrypted} fields look up
+ * the canonical name only; call {@link #canonicalize(JsonObject)} on a document read from a
+ * mixed bucket (for example one still holding {@code __crypt_} fields) before decrypting it.
+ */
+public class MultiPrefixCryptoManager implements CryptoManager {
+    private final CryptoManager delegate;
+    private final String canonicalPrefix;
+    private final PrefixMatcher matcher;
+
+    private MultiPrefixCryptoManager(CryptoManager delegate, String canonicalPrefix, Set<String> prefixes) {
+        this.delegate = requireNonNull(delegate);
+        this.canonicalPrefix = requireNonNull(canonicalPrefix);
+        this.matcher = new PrefixMatcher(prefixes);
+    }
+
+    /**
+     * @param delegate performs encryption and decryption; its own prefix is not used
+     * @param canonicalPrefix prefix used when writing encrypted fields
+     * @param otherPrefixes additional prefixes recognised when reading
+     */
+    public static MultiPrefixCryptoManager create(CryptoManager delegate, String canonicalPrefix, String... otherPrefixes) {
+        Set<String> prefixes = new LinkedHashSet<>();
+        prefixes.add(canonicalPrefix);
+        prefixes.addAll(Arrays.asList(otherPrefixes));
+        return new MultiPrefixCryptoManager(delegate, canonicalPrefix, prefixes);
+    }
+
+    @Override
+    public Map<String, Object> encrypt(byte[] plaintext, String encrypterAlias) {
+        return delegate.encrypt(plaintext, encrypterAlias);
+    }
+
+    @Override
+    public byte[] decrypt(Map<String, Object> encryptedNode) {
+        return delegate.decrypt(encryptedNode);
+    }
+
+    @Override
+    public String mangle(String fieldName) {
+        return canonicalPrefix + fieldName;
+    }
+
+    @Override
+    public String demangle(String fieldName) {
+        int prefixLength = matcher.match(fieldName);
+        if (prefixLength < 0) {
+            throw new IllegalArgumentException("Field name '" + fieldName + "' does not start with a recognised prefix");
+        }
+        return fieldName.substring(prefixLength);
+    }
+
+    @Override
+    public boolean isMangled(String fieldName) {
+        return matcher.match(fieldName) >= 0;
+    }
+
+    /**
+     * Renames encrypted fields that use a non-canonical prefix so they use the canonical one,
+     * descending into nested objects and arrays. Returns the same (modified) object.
+     *
+     * @throws IllegalArgumentException if a field is present under two prefixes
+     */
+    public JsonObject canonicalize(JsonObject document) {
+        List<String> names = new ArrayList<>(document.getNames());
+        for (String name : names) {
+            int prefixLength = matcher.match(name);
+            if (prefixLength < 0) {
+                canonicalizeValue(document.get(name));
+                continue;
+            }
+            if (name.startsWith(canonicalPrefix) && prefixLength == canonicalPrefix.length()) {
+                continue;
+            }
+            String canonicalName = canonicalPrefix + name.substring(prefixLength);
+            if (document.containsKey(canonicalName)) {
+                throw new IllegalArgumentException("Encrypted field '" + name.substring(prefixLength)
+                    + "' is present as both '" + name + "' and '" + canonicalName + "'");
+            }
+            document.put(canonicalName, document.get(name));
+            document.removeKey(name);
+        }
+        return document;
+    }
+
+    private void canonicalizeValue(Object value) {
+        if (value instanceof JsonObject) {
+            canonicalize((JsonObject) value);
+        } else if (value instanceof JsonArray) {
+            for (Object element : (JsonArray) value) {
+                canonicalizeValue(element);
+            }
+        }
+    }
+
+    /**
+     * Character trie over the recognised prefixes. {@link #match} walks the field name once
+     * and reports the longest prefix it passed through.
+     */
+    static class PrefixMatcher {
+        private final Node root = new Node();
+
+        PrefixMatcher(Set<String> prefixes) {
+            for (String prefix : prefixes) {
+                if (prefix.isEmpty()) {
+                    throw new IllegalArgumentException("Encrypted field name prefix must not be empty");
+                }
+                Node node = root;
+                for (int i = 0; i < prefix.length(); i++) {
+                    node = node.childOrCreate(prefix.charAt(i));
+                }
+                node.terminal = true;
+            }
+        }
+
+        /**
+         * Returns the length of the longest recognised prefix of the name, or -1 if there is none.
+         */
+        int match(String name) {
+            int matched = -1;
+            Node node = root;
+            for (int i = 0; i < name.length(); i++) {
+                node = node.child(name.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                if (node.terminal) {
+                    matched = i + 1;
+                }
+            }
+            return matched;
+        }
+
+        private static class Node {
+            private char[] labels = new char[0];
+            private Node[] children = new Node[0];
+            private boolean terminal;
+
+            Node child(char c) {
+                for (int i = 0; i < labels.length; i++) {
+                    if (labels[i] == c) {
+                        return children[i];
+                    }
+                }
+                return null;
+            }
+
+            Node childOrCreate(char c) {
+                Node existing = child(c);
+                if (existing != null) {
+                    return existing;
+                }
+                Node created = new Node();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                labels[labels.length - 1] = c;
+                children[children.length - 1] = created;
+                return created;
+            }
+        }
+    }
+}
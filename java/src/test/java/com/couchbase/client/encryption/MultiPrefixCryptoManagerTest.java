@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.json.JsonObjectCrypto;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultiPrefixCryptoManagerTest {
+    private final MultiPrefixCryptoManager cryptoManager;
+
+    public MultiPrefixCryptoManagerTest() {
+        Map<String, byte[]> legacyKeys = new HashMap<>();
+        legacyKeys.put("aes256Key", fakeKey(32));
+        legacyKeys.put("aes128Key", fakeKey(16));
+        legacyKeys.put("hmacKey", fakeKey(7));
+
+        AeadAes256CbcHmacSha512Provider provider = EncryptionTestHelper.provider();
+        CryptoManager delegate = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey("test-key"))
+            .legacyAesDecrypters(Keyring.fromMap(legacyKeys), keyName -> "hmacKey")
+            .build();
+
+        cryptoManager = MultiPrefixCryptoManager.create(delegate, "encrypted$", "customPrefix$", "__crypt_");
+    }
+
+    private static byte[] fakeKey(int len) {
+        byte[] result = new byte[len];
+        for (int i = 0; i < len; i++) {
+            result[i] = (byte) i;
+        }
+        return result;
+    }
+
+    @Test
+    void writesWithCanonicalPrefix() {
+        JsonObject document = JsonObject.create();
+        document.crypto(cryptoManager).put("field", "value");
+
+        assertTrue(document.containsKey("encrypted$field"));
+        assertEquals("encrypted$field", cryptoManager.mangle("field"));
+    }
+
+    @Test
+    void recognisesAllPrefixes() {
+        assertTrue(cryptoManager.isMangled("encrypted$field"));
+        assertTrue(cryptoManager.isMangled("customPrefix$field"));
+        assertTrue(cryptoManager.isMangled("__crypt_field"));
+        assertFalse(cryptoManager.isMangled("encrypted"));
+        assertFalse(cryptoManager.isMangled("custom$field"));
+        assertFalse(cryptoManager.isMangled("field"));
+
+        assertEquals("field", cryptoManager.demangle("customPrefix$field"));
+        assertEquals("field", cryptoManager.demangle("__crypt_field"));
+        assertThrows(IllegalArgumentException.class, () -> cryptoManager.demangle("field"));
+    }
+
+    @Test
+    void prefersLongestMatchingPrefix() {
+        MultiPrefixCryptoManager.PrefixMatcher matcher = new MultiPrefixCryptoManager.PrefixMatcher(
+            new LinkedHashSet<>(Arrays.asList("enc$", "enc$v2$", "e")));
+
+        assertEquals(7, matcher.match("enc$v2$field"));
+        assertEquals(4, matcher.match("enc$v3$field"));
+        assertEquals(1, matcher.match("encoding"));
+        assertEquals(-1, matcher.match("field"));
+    }
+
+    @Test
+    void canDecryptMixedDocument() {
+        JsonObject written = JsonObject.create();
+        JsonObjectCrypto writer = written.crypto(cryptoManager);
+        writer.put("canonical", "canonical value");
+        writer.put("custom", "custom value");
+        JsonObject nested = JsonObject.create();
+        nested.crypto(cryptoManager).put("inner", 42);
+
+        JsonObject document = JsonObject.create()
+            .put("encrypted$canonical", written.getObject("encrypted$canonical"))
+            .put("customPrefix$custom", written.getObject("encrypted$custom"))
+            .put("__crypt_one", JsonObject.create()
+                .put("sig", "TkpyZnha4xd+FsX1aEGqB235d495oOUBfC4Y+Gbic4U=")
+                .put("ciphertext", "MZI/xSiM7919UTM5CO/RWg==")
+                .put("alg", "AES-128-HMAC-SHA256")
+                .put("iv", "HIBdmnoQD4DUgkBj5LAMFw==")
+                .put("kid", "aes128Key"))
+            .put("items", JsonArray.from(JsonObject.create()
+                .put("customPrefix$inner", nested.getObject("encrypted$inner"))))
+            .put("plain", true);
+
+        cryptoManager.canonicalize(document);
+
+        JsonObjectCrypto crypto = document.crypto(cryptoManager);
+        assertEquals("canonical value", crypto.getString("canonical"));
+        assertEquals("custom value", crypto.getString("custom"));
+        assertEquals(1, crypto.getInt("one"));
+        assertEquals(42, document.getArray("items").getObject(0).crypto(cryptoManager).getInt("inner"));
+        assertTrue(document.getBoolean("plain"));
+        assertFalse(document.containsKey("customPrefix$custom"));
+        assertFalse(document.containsKey("__crypt_one"));
+    }
+
+    @Test
+    void rejectsFieldPresentUnderTwoPrefixes() {
+        JsonObject document = JsonObject.create()
+            .put("encrypted$field", JsonObject.create())
+            .put("__crypt_field", JsonObject.create());
+
+        assertThrows(IllegalArgumentException.class, () -> cryptoManager.canonicalize(document));
+    }
+}
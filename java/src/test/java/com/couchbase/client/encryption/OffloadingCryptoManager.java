@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.java.ReactiveCollection;
+import com.couchbase.client.java.codec.RawJsonTranscoder;
+import com.couchbase.client.java.json.JsonObject;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.couchbase.client.java.kv.GetOptions.getOptions;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Runs the crypto of a {@link CryptoManager} on a bounded, dedicated scheduler, so large
+ * payloads do not occupy the SDK's IO threads.
+ * <p>
+ * The SDK calls a {@code CryptoManager} synchronously while it (de)serializes, on whichever
+ * thread that happens, so this class is not one. Instead, {@link #get} fetches documents as
+ * raw JSON and decrypts them after switching to the dedicated scheduler, and the
+ * {@link Mono} and {@link CompletableFuture} variants of encrypt and decrypt do the same for
+ * single fields. Payloads below the offload threshold are processed on the calling thread.
+ */
+public class OffloadingCryptoManager implements AutoCloseable {
+    public static final int DEFAULT_OFFLOAD_THRESHOLD = 64 * 1024;
+    public static final String THREAD_NAME_PREFIX = "cb-crypto-offload-";
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final CryptoManager delegate;
+    private final StreamingDecryptor decryptor;
+    private final int offloadThreshold;
+    private final ThreadPoolExecutor executor;
+    private final Scheduler scheduler;
+
+    private OffloadingCryptoManager(Builder builder) {
+        this.delegate = builder.delegate;
+        this.decryptor = new StreamingDecryptor(builder.delegate);
+        this.offloadThreshold = builder.offloadThreshold;
+        this.executor = new ThreadPoolExecutor(builder.threads, builder.threads,
+            60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(builder.queueCapacity),
+            runnable -> {
+                Thread t = new Thread(runnable, THREAD_NAME_PREFIX + threadCounter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.scheduler = Schedulers.fromExecutorService(executor);
+    }
+
+    public static Builder builder(CryptoManager delegate) {
+        return new Builder(delegate);
+    }
+
+    /**
+     * Fetches the document and returns its plaintext, with encrypted fields decrypted and demangled.
+     */
+    public Mono<JsonObject> get(ReactiveCollection collection, String id) {
+        return get(collection, id, JsonObject.class);
+    }
+
+    /**
+     * Fetches the document and binds its plaintext to the given type.
+     */
+    public <T> Mono<T> get(ReactiveCollection collection, String id, Class<T> target) {
+        return decryptDocument(collection.get(id, getOptions().transcoder(RawJsonTranscoder.INSTANCE))
+            .map(result -> result.contentAs(byte[].class)), target);
+    }
+
+    /**
+     * Decrypts raw JSON documents as they are emitted, for example by a get with
+     * {@link RawJsonTranscoder}, and binds the plaintext to the given type.
+     */
+    public <T> Mono<T> decryptDocument(Mono<byte[]> rawDocument, Class<T> target) {
+        return rawDocument.flatMap(raw -> {
+            // The SDK emits on its IO thread; switch away before any crypto runs
+            Mono<byte[]> source = isOffloaded(raw.length) ? Mono.just(raw).publishOn(scheduler) : Mono.just(raw);
+            return source.map(document -> decryptor.decrypt(document, target));
+        });
+    }
+
+    public Mono<Map<String, Object>> encryptReactive(byte[] plaintext, String encrypterAlias) {
+        return offload(Mono.fromCallable(() -> delegate.encrypt(plaintext, encrypterAlias)), plaintext.length);
+    }
+
+    public Mono<byte[]> decryptReactive(Map<String, Object> encryptedNode) {
+        return offload(Mono.fromCallable(() -> delegate.decrypt(encryptedNode)), estimatePlaintextSize(encryptedNode));
+    }
+
+    public CompletableFuture<Map<String, Object>> encryptAsync(byte[] plaintext, String encrypterAlias) {
+        return offload(() -> delegate.encrypt(plaintext, encrypterAlias), plaintext.length);
+    }
+
+    public CompletableFuture<byte[]> decryptAsync(Map<String, Object> encryptedNode) {
+        return offload(() -> delegate.decrypt(encryptedNode), estimatePlaintextSize(encryptedNode));
+    }
+
+    /**
+     * Returns true if a payload of the given size is processed on the dedicated scheduler.
+     */
+    public boolean isOffloaded(int payloadSize) {
+        return payloadSize >= offloadThreshold;
+    }
+
+    /**
+     * Stops accepting work. Operations already queued still run, so their results complete;
+     * later operations fail with {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    @Override
+    public void close() {
+        // Not scheduler.dispose(), which calls shutdownNow() and drops queued work
+        executor.shutdown();
+    }
+
+    private <T> Mono<T> offload(Mono<T> work, int payloadSize) {
+        return isOffloaded(payloadSize) ? work.subscribeOn(scheduler) : work;
+    }
+
+    private <T> CompletableFuture<T> offload(Supplier<T> work, int payloadSize) {
+        try {
+            if (isOffloaded(payloadSize)) {
+                return CompletableFuture.supplyAsync(work, executor);
+            }
+            return CompletableFuture.completedFuture(work.get());
+        } catch (RuntimeException e) {
+            // Either the work itself failed, or the scheduler's queue is full.
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private static int estimatePlaintextSize(Map<String, Object> encryptedNode) {
+        // The ciphertext is Base64; its decoded length is a close upper bound on the plaintext length.
+        Object ciphertext = encryptedNode.get("ciphertext");
+        return ciphertext instanceof String ? ((String) ciphertext).length() / 4 * 3 : 0;
+    }
+
+    public static class Builder {
+        private final CryptoManager delegate;
+        private int offloadThreshold = DEFAULT_OFFLOAD_THRESHOLD;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int queueCapacity = 1024;
+
+        private Builder(CryptoManager delegate) {
+            this.delegate = requireNonNull(delegate);
+        }
+
+        /**
+         * Fields, or raw documents, of at least this many bytes are processed on the dedicated scheduler.
+         */
+        public Builder offloadThreshold(int bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("offload threshold must be non-negative but got " + bytes);
+            }
+            this.offloadThreshold = bytes;
+            return this;
+        }
+
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("thread count must be positive but got " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Maximum number of offloaded operations waiting for a thread. Further operations fail
+         * with {@link java.util.concurrent.RejectedExecutionException} instead of queueing without bound.
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            if (queueCapacity < 1) {
+                throw new IllegalArgumentException("queue capacity must be positive but got " + queueCapacity);
+            }
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public OffloadingCryptoManager build() {
+            return new OffloadingCryptoManager(this);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.java.json.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffloadingCryptoManagerTest {
+    private static final int THRESHOLD = 1024;
+
+    private final CryptoManager cryptoManager;
+    private final OffloadingCryptoManager offloading;
+
+    public OffloadingCryptoManagerTest() {
+        AeadAes256CbcHmacSha512Provider provider = EncryptionTestHelper.provider();
+        cryptoManager = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey("test-key"))
+            .build();
+        offloading = OffloadingCryptoManager.builder(cryptoManager)
+            .offloadThreshold(THRESHOLD)
+            .threads(2)
+            .build();
+    }
+
+    @AfterEach
+    void shutdown() {
+        offloading.close();
+    }
+
+    @Test
+    void smallPayloadStaysOnCallingThread() {
+        final byte[] plaintext = "\"The enemy knows the system.\"".getBytes(UTF_8);
+        AtomicReference<String> thread = new AtomicReference<>();
+
+        Map<String, Object> encrypted = offloading.encryptReactive(plaintext, null)
+            .doOnNext(it -> thread.set(Thread.currentThread().getName()))
+            .block();
+
+        assertEquals(Thread.currentThread().getName(), thread.get());
+        assertEquals(cryptoManager.encrypt(plaintext, null), encrypted);
+        assertArrayEquals(plaintext, offloading.decryptReactive(encrypted).block());
+    }
+
+    @Test
+    void largePayloadRunsOnDedicatedScheduler() {
+        final byte[] plaintext = largePayload();
+        AtomicReference<String> thread = new AtomicReference<>();
+
+        Map<String, Object> encrypted = offloading.encryptReactive(plaintext, null)
+            .doOnNext(it -> thread.set(Thread.currentThread().getName()))
+            .block();
+
+        assertTrue(thread.get().startsWith(OffloadingCryptoManager.THREAD_NAME_PREFIX), thread.get());
+        assertEquals(cryptoManager.encrypt(plaintext, null), encrypted);
+
+        byte[] decrypted = offloading.decryptReactive(encrypted)
+            .doOnNext(it -> thread.set(Thread.currentThread().getName()))
+            .block();
+        assertTrue(thread.get().startsWith(OffloadingCryptoManager.THREAD_NAME_PREFIX), thread.get());
+        assertArrayEquals(plaintext, decrypted);
+    }
+
+    @Test
+    void futuresMatchSynchronousResults() throws Exception {
+        for (byte[] plaintext : Arrays.asList("\"small\"".getBytes(UTF_8), largePayload())) {
+            Map<String, Object> encrypted = offloading.encryptAsync(plaintext, null).get();
+            assertEquals(cryptoManager.encrypt(plaintext, null), encrypted);
+            assertArrayEquals(plaintext, offloading.decryptAsync(encrypted).get());
+        }
+    }
+
+    @Test
+    void failuresAreReportedThroughTheFuture() {
+        Map<String, Object> encrypted = new HashMap<>(cryptoManager.encrypt(largePayload(), null));
+        encrypted.put("kid", "IncorrectKid");
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> offloading.decryptAsync(encrypted).get());
+        assertEquals("Decryption failed; Failed to locate crypto key 'IncorrectKid'", e.getCause().getMessage());
+    }
+
+    @Test
+    void decryptsFetchedDocumentsOffTheIoThread() {
+        AtomicReference<String> thread = new AtomicReference<>();
+        CryptoManager recording = new CryptoManager() {
+            @Override
+            public Map<String, Object> encrypt(byte[] plaintext, String encrypterAlias) {
+                return cryptoManager.encrypt(plaintext, encrypterAlias);
+            }
+
+            @Override
+            public byte[] decrypt(Map<String, Object> encryptedNode) {
+                thread.set(Thread.currentThread().getName());
+                return cryptoManager.decrypt(encryptedNode);
+            }
+        };
+        Scheduler ioThread = Schedulers.newSingle("cb-io");
+        try (OffloadingCryptoManager offloading = OffloadingCryptoManager.builder(recording)
+            .offloadThreshold(THRESHOLD)
+            .build()) {
+            String large = new String(largePayload(), UTF_8);
+            JsonObject plaintext = offloading.decryptDocument(fetched(ioThread, "large", large), JsonObject.class).block();
+            assertEquals(large, plaintext.getString("large"));
+            assertTrue(thread.get().startsWith(OffloadingCryptoManager.THREAD_NAME_PREFIX), thread.get());
+
+            plaintext = offloading.decryptDocument(fetched(ioThread, "small", "secret"), JsonObject.class).block();
+            assertEquals("secret", plaintext.getString("small"));
+            assertTrue(thread.get().startsWith("cb-io"), thread.get());
+        } finally {
+            ioThread.dispose();
+        }
+    }
+
+    @Test
+    void closeLetsQueuedOperationsComplete() throws Exception {
+        OffloadingCryptoManager single = OffloadingCryptoManager.builder(cryptoManager)
+            .offloadThreshold(0)
+            .threads(1)
+            .queueCapacity(64)
+            .build();
+        byte[] plaintext = largePayload();
+        List<CompletableFuture<Map<String, Object>>> queued = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            queued.add(single.encryptAsync(plaintext, null));
+        }
+        single.close();
+
+        for (CompletableFuture<Map<String, Object>> future : queued) {
+            assertEquals(cryptoManager.encrypt(plaintext, null), future.get(10, TimeUnit.SECONDS));
+        }
+        ExecutionException e = assertThrows(ExecutionException.class, () -> single.encryptAsync(plaintext, null).get());
+        assertTrue(e.getCause() instanceof RejectedExecutionException, e.getCause().toString());
+        assertThrows(RejectedExecutionException.class, () -> single.encryptReactive(plaintext, null).block());
+    }
+
+    /**
+     * Emits the raw JSON of a document with one encrypted field on the given thread, as a
+     * {@code ReactiveCollection} get with {@code RawJsonTranscoder} does on an IO thread.
+     */
+    private Mono<byte[]> fetched(Scheduler ioThread, String field, String value) {
+        JsonObject document = JsonObject.create().put("id", field);
+        document.crypto(cryptoManager).put(field, value);
+        byte[] raw = document.toString().getBytes(UTF_8);
+        return Mono.fromCallable(() -> raw).subscribeOn(ioThread);
+    }
+
+    private static byte[] largePayload() {
+        byte[] result = new byte[THRESHOLD * 4];
+        Arrays.fill(result, (byte) 'x');
+        result[0] = '"';
+        result[result.length - 1] = '"';
+        return result;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits a batch into contiguous chunks and runs them as fork-join tasks, for batch operations
+ * that set up per-chunk state such as a Cipher and a Mac once and reuse it for every item.
+ */
+class ParallelChunks {
+    // A few chunks per worker balances load; each extra chunk repeats the per-chunk setup
+    static final int CHUNKS_PER_WORKER = 4;
+
+    @FunctionalInterface
+    interface ChunkTask {
+        void run(int from, int to);
+    }
+
+    private ParallelChunks() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * Runs the task over {@code [0, count)}: on the calling thread if there is no pool or
+     * {@code count} is below {@code parallelThreshold}, otherwise as one task per chunk in the pool.
+     * If chunks fail, the first failure is rethrown unchanged once all chunks have finished.
+     */
+    static void forEachChunk(ForkJoinPool pool, int parallelThreshold, int count, ChunkTask task) {
+        if (pool == null || count < parallelThreshold) {
+            task.run(0, count);
+            return;
+        }
+        int chunks = Math.min(count, pool.getParallelism() * CHUNKS_PER_WORKER);
+        int chunkSize = (count + chunks - 1) / chunks;
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        List<Chunk> tasks = new ArrayList<>(chunks);
+        for (int from = 0; from < count; from += chunkSize) {
+            tasks.add(new Chunk(task, from, Math.min(count, from + chunkSize), failure));
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static class Chunk extends RecursiveAction {
+        private final ChunkTask task;
+        private final int from;
+        private final int to;
+        private final AtomicReference<RuntimeException> failure;
+
+        Chunk(ChunkTask task, int from, int to, AtomicReference<RuntimeException> failure) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                task.run(from, to);
+            } catch (RuntimeException e) {
+                // Kept rather than thrown, so the caller sees the original exception and not
+                // the copy ForkJoinTask.join() may create for exceptions from other threads
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+}
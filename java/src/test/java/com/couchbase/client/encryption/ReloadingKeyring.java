@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A {@link Keyring} that watches a key file and reloads it when it changes.
+ * <p>
+ * The new keys are loaded on a background thread and published with a single volatile write,
+ * so lookups never take a lock and never see a partially loaded key set. A failed reload
+ * (for example a file caught mid-write) keeps the previous keys.
+ * <p>
+ * Callers that need several lookups to agree with each other should use {@link #snapshot()}.
+ */
+public class ReloadingKeyring implements Keyring, Closeable {
+    private final Path file;
+    private final Callable<? extends Map<String, byte[]>> loader;
+    private final boolean caseInsensitiveIds;
+    private final WatchService watchService;
+    private final AtomicLong reloads = new AtomicLong();
+
+    private volatile Keyring current;
+    private volatile Exception lastReloadFailure;
+
+    private ReloadingKeyring(Path file, Callable<? extends Map<String, byte[]>> loader, boolean caseInsensitiveIds) throws Exception {
+        this.file = file.toAbsolutePath();
+        this.loader = requireNonNull(loader);
+        this.caseInsensitiveIds = caseInsensitiveIds;
+        this.current = load();
+
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread watcher = new Thread(this::watchLoop, "cb-keyring-reload-" + this.file.getFileName());
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Watches the given file, using the loader to read all keys whenever it changes.
+     */
+    public static ReloadingKeyring watch(Path file, Callable<? extends Map<String, byte[]>> loader) throws Exception {
+        return new ReloadingKeyring(file, loader, false);
+    }
+
+    /**
+     * Watches a key store file such as the JCEKS file read by {@link KeyStoreKeyring}.
+     * As with {@code KeyStoreKeyring}, key ids match aliases case-insensitively.
+     */
+    public static ReloadingKeyring watchKeyStore(Path file, String keyStoreType, String integrityPassword,
+                                                 Function<String, String> protectionPasswordProvider) throws Exception {
+        return new ReloadingKeyring(file, () -> {
+            KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+            try (InputStream is = Files.newInputStream(file)) {
+                keyStore.load(is, integrityPassword.toCharArray());
+            }
+            return IndexedKeyFileKeyring.secretKeys(keyStore, protectionPasswordProvider);
+        }, true);
+    }
+
+    @Override
+    public Optional<Key> get(String keyId) {
+        return current.get(keyId);
+    }
+
+    /**
+     * Returns the keys as currently published. The returned keyring is not affected by later reloads.
+     */
+    public Keyring snapshot() {
+        return current;
+    }
+
+    /**
+     * Reloads the file now. Returns true if the new keys were published.
+     */
+    public synchronized boolean reload() {
+        try {
+            current = load();
+            lastReloadFailure = null;
+            reloads.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            lastReloadFailure = e;
+            return false;
+        }
+    }
+
+    /**
+     * Number of successful reloads since this keyring was created.
+     */
+    public long reloadCount() {
+        return reloads.get();
+    }
+
+    /**
+     * The error from the most recent reload, or empty if it succeeded.
+     */
+    public Optional<Exception> lastReloadFailure() {
+        return Optional.ofNullable(lastReloadFailure);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private Keyring load() throws Exception {
+        if (!caseInsensitiveIds) {
+            return Keyring.fromMap(loader.call());
+        }
+        Keyring keys = Keyring.fromMap(IndexedKeyFileKeyring.normalizeAliases(loader.call()));
+        return keyId -> keyId == null
+            ? Optional.empty()
+            : keys.get(IndexedKeyFileKeyring.normalizeAlias(keyId)).map(key -> new Key(keyId, key.bytes()));
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                        || file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // closed; stop watching
+        }
+    }
+}
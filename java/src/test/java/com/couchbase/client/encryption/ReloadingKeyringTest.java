@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReloadingKeyringTest {
+    @TempDir
+    Path tempDir;
+
+    private static byte[] fakeKey(int len, int seed) {
+        byte[] result = new byte[len];
+        for (int i = 0; i < len; i++) {
+            result[i] = (byte) (i + seed);
+        }
+        return result;
+    }
+
+    private static void writeKeyStore(Path file, String... keyNames) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JCEKS");
+        keyStore.load(null);
+        for (int i = 0; i < keyNames.length; i++) {
+            KeyStoreKeyring.setSecretKey(keyStore, keyNames[i], fakeKey(64, i), "protection-password".toCharArray());
+        }
+        // Replace the file atomically, the way a deployment would
+        Path temp = Files.createTempFile(file.getParent(), "keystore", ".tmp");
+        try (OutputStream os = Files.newOutputStream(temp)) {
+            keyStore.store(os, "integrity-password".toCharArray());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private ReloadingKeyring watchKeyStore(Path file) throws Exception {
+        return ReloadingKeyring.watchKeyStore(file, "JCEKS", "integrity-password", keyName -> "protection-password");
+    }
+
+    @Test
+    void reloadPublishesNewKeys() throws Exception {
+        Path file = tempDir.resolve("MyKeystoreFile.jceks");
+        writeKeyStore(file, "my-key");
+
+        try (ReloadingKeyring keyring = watchKeyStore(file)) {
+            assertTrue(keyring.get("my-key").isPresent());
+            assertFalse(keyring.get("new-key").isPresent());
+            Keyring before = keyring.snapshot();
+
+            writeKeyStore(file, "my-key", "new-key");
+            assertTrue(keyring.reload());
+
+            assertArrayEquals(fakeKey(64, 1), keyring.getOrThrow("new-key").bytes());
+            assertFalse(before.get("new-key").isPresent());
+        }
+    }
+
+    @Test
+    void resolvesMixedCaseKidsLikeKeyStoreKeyring() throws Exception {
+        Path file = tempDir.resolve("MyKeystoreFile.jceks");
+        writeKeyStore(file, "my-key", "aes256Key");
+
+        try (ReloadingKeyring keyring = watchKeyStore(file)) {
+            assertArrayEquals(fakeKey(64, 1), keyring.getOrThrow("aes256Key").bytes());
+            assertEquals("aes256Key", keyring.getOrThrow("aes256Key").id());
+            assertArrayEquals(fakeKey(64, 1), keyring.getOrThrow("aes256key").bytes());
+            assertFalse(keyring.get(null).isPresent());
+        }
+    }
+
+    @Test
+    void failedReloadKeepsPreviousKeys() throws Exception {
+        Path file = tempDir.resolve("MyKeystoreFile.jceks");
+        writeKeyStore(file, "my-key");
+
+        try (ReloadingKeyring keyring = watchKeyStore(file)) {
+            Files.write(file, "truncated".getBytes(UTF_8));
+            assertFalse(keyring.reload());
+
+            assertTrue(keyring.lastReloadFailure().isPresent());
+            assertTrue(keyring.get("my-key").isPresent());
+        }
+    }
+
+    @Test
+    void picksUpFileChangesWithoutRebuildingCryptoManager() throws Exception {
+        Path file = tempDir.resolve("MyKeystoreFile.jceks");
+        writeKeyStore(file, "my-key");
+
+        try (ReloadingKeyring keyring = watchKeyStore(file)) {
+            AeadAes256CbcHmacSha512Provider provider = AeadAes256CbcHmacSha512Provider.builder()
+                .keyring(keyring)
+                .build();
+            CryptoManager cryptoManager = DefaultCryptoManager.builder()
+                .decrypter(provider.decrypter())
+                .defaultEncrypter(provider.encrypterForKey("my-key"))
+                .build();
+
+            // A document written by a service that already has the new key
+            AeadAes256CbcHmacSha512Provider writer = AeadAes256CbcHmacSha512Provider.builder()
+                .keyring(Keyring.fromMap(Collections.singletonMap("new-key", fakeKey(64, 1))))
+                .build();
+            byte[] plaintext = "\"The enemy knows the system.\"".getBytes(UTF_8);
+            Map<String, Object> encrypted = DefaultCryptoManager.builder()
+                .defaultEncrypter(writer.encrypterForKey("new-key"))
+                .build()
+                .encrypt(plaintext, null);
+
+            writeKeyStore(file, "my-key", "new-key");
+            long deadline = System.nanoTime() + 30_000_000_000L;
+            while (!keyring.get("new-key").isPresent() && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(keyring.reloadCount() > 0);
+            assertArrayEquals(plaintext, cryptoManager.decrypt(encrypted));
+        }
+    }
+}
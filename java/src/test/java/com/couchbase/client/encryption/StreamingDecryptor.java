@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.deps.com.fasterxml.jackson.core.JsonFactory;
+import com.couchbase.client.core.deps.com.fasterxml.jackson.core.JsonGenerator;
+import com.couchbase.client.core.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.core.deps.com.fasterxml.jackson.core.JsonToken;
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.codec.RawJsonTranscoder;
+import com.couchbase.client.java.json.JacksonTransformers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+import static com.couchbase.client.java.kv.GetOptions.getOptions;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Decrypts a JSON document token by token, without building a {@code JsonObject} tree first.
+ * <p>
+ * Plaintext fields are copied straight from the input to the output. Each encrypted field
+ * (a mangled name whose value is an object) is read as a small envelope map, decrypted,
+ * and written back under its demangled name. A mangled name with any other value is copied
+ * unchanged, under its mangled name. Only one envelope and its plaintext are held
+ * in memory at a time, at any depth in the document.
+ */
+public class StreamingDecryptor {
+    private final CryptoManager cryptoManager;
+    private final JsonFactory factory = JacksonTransformers.MAPPER.getFactory();
+
+    public StreamingDecryptor(CryptoManager cryptoManager) {
+        this.cryptoManager = requireNonNull(cryptoManager);
+    }
+
+    /**
+     * Reads an encrypted JSON document and writes the plaintext JSON. Neither stream is closed.
+     */
+    public void decrypt(InputStream in, OutputStream out) throws IOException {
+        try (JsonParser parser = factory.createParser(in);
+             JsonGenerator generator = factory.createGenerator(out)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            if (parser.nextToken() != null) {
+                copy(parser, generator);
+            }
+        }
+    }
+
+    public byte[] decrypt(byte[] document) {
+        try (JsonParser parser = factory.createParser(document)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(document.length);
+            try (JsonGenerator generator = factory.createGenerator(out)) {
+                if (parser.nextToken() != null) {
+                    copy(parser, generator);
+                }
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decrypts the document and binds the plaintext to the given type, for example
+     * {@code JsonObject.class} or a POJO without {@code @Encrypted} fields.
+     */
+    public <T> T decrypt(byte[] document, Class<T> target) {
+        try {
+            return JacksonTransformers.MAPPER.readValue(decrypt(document), target);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Fetches the raw document bytes from the collection and writes the plaintext JSON.
+     */
+    public void decrypt(Collection collection, String id, OutputStream out) throws IOException {
+        byte[] raw = collection.get(id, getOptions().transcoder(RawJsonTranscoder.INSTANCE))
+            .contentAs(byte[].class);
+        decrypt(new ByteArrayInputStream(raw), out);
+    }
+
+    private void copy(JsonParser parser, JsonGenerator generator) throws IOException {
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                generator.writeStartObject();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (value == JsonToken.START_OBJECT && cryptoManager.isMangled(name)) {
+                        generator.writeFieldName(cryptoManager.demangle(name));
+                        writeDecrypted(parser, generator);
+                    } else {
+                        generator.writeFieldName(name);
+                        copy(parser, generator);
+                    }
+                }
+                generator.writeEndObject();
+                break;
+            case START_ARRAY:
+                generator.writeStartArray();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    copy(parser, generator);
+                }
+                generator.writeEndArray();
+                break;
+            default:
+                generator.copyCurrentEvent(parser);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeDecrypted(JsonParser parser, JsonGenerator generator) throws IOException {
+        Map<String, Object> encrypted = parser.readValueAs(Map.class);
+        byte[] plaintext = cryptoManager.decrypt(encrypted);
+        try (JsonParser plaintextParser = factory.createParser(plaintext)) {
+            plaintextParser.nextToken();
+            generator.copyCurrentStructure(plaintextParser);
+        }
+    }
+}
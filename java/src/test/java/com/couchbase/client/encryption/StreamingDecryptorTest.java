@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020 Couchbase, Inc.
+ *
+ * Use of this software is subject to the Couchbase Inc. Enterprise Subscription License Agreement v7
+ * which may be found at https://www.couchbase.com/ESLA01162020.
+ */
+
+package com.couchbase.client.encryption;
+
+import com.couchbase.client.core.encryption.CryptoManager;
+import com.couchbase.client.encryption.errors.DecryptionFailureException;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.json.JsonObjectCrypto;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingDecryptorTest {
+    private final CryptoManager cryptoManager;
+    private final StreamingDecryptor decryptor;
+
+    public StreamingDecryptorTest() {
+        AeadAes256CbcHmacSha512Provider provider = EncryptionTestHelper.provider();
+        cryptoManager = DefaultCryptoManager.builder()
+            .decrypter(provider.decrypter())
+            .defaultEncrypter(provider.encrypterForKey("test-key"))
+            .build();
+        decryptor = new StreamingDecryptor(cryptoManager);
+    }
+
+    private JsonObject encryptedDocument() {
+        JsonObject address = JsonObject.create().put("street", "1 Main St");
+        address.crypto(cryptoManager).put("zip", "12345");
+
+        JsonObject document = JsonObject.create()
+            .put("unEncrypted", true)
+            .put("address", address)
+            .put("tags", JsonArray.from("a", 1, JsonObject.create().put("x", 2.5)))
+            .put("encrypted$notAnEnvelope", "left as is");
+        JsonObjectCrypto crypto = document.crypto(cryptoManager);
+        crypto.put("encryptedValue", "This is encrypted Value");
+        crypto.put("encryptedObject", JsonObject.create().put("nested", JsonArray.from(1, 2, 3)));
+        return document;
+    }
+
+    private static JsonObject expectedPlaintext() {
+        return JsonObject.create()
+            .put("unEncrypted", true)
+            .put("address", JsonObject.create().put("street", "1 Main St").put("zip", "12345"))
+            .put("tags", JsonArray.from("a", 1, JsonObject.create().put("x", 2.5)))
+            // not an envelope, so it keeps its mangled name
+            .put("encrypted$notAnEnvelope", "left as is")
+            .put("encryptedValue", "This is encrypted Value")
+            .put("encryptedObject", JsonObject.create().put("nested", JsonArray.from(1, 2, 3)));
+    }
+
+    @Test
+    void decryptsStreamInline() throws Exception {
+        byte[] encrypted = encryptedDocument().toString().getBytes(UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        decryptor.decrypt(new ByteArrayInputStream(encrypted), out);
+
+        assertEquals(expectedPlaintext(), JsonObject.fromJson(new String(out.toByteArray(), UTF_8)));
+    }
+
+    @Test
+    void decryptsToTargetType() {
+        byte[] encrypted = encryptedDocument().toString().getBytes(UTF_8);
+
+        assertEquals(expectedPlaintext(), decryptor.decrypt(encrypted, JsonObject.class));
+    }
+
+    @Test
+    void matchesJsonObjectCrypto() {
+        JsonObject document = encryptedDocument();
+        JsonObject streamed = decryptor.decrypt(document.toString().getBytes(UTF_8), JsonObject.class);
+
+        JsonObjectCrypto crypto = document.crypto(cryptoManager);
+        assertEquals(crypto.getString("encryptedValue"), streamed.getString("encryptedValue"));
+        assertEquals(crypto.getObject("encryptedObject"), streamed.getObject("encryptedObject"));
+    }
+
+    @Test
+    void propagatesDecryptionFailures() {
+        JsonObject document = encryptedDocument();
+        document.getObject("encrypted$encryptedValue").put("kid", "IncorrectKid");
+
+        DecryptionFailureException e = assertThrows(DecryptionFailureException.class,
+            () -> decryptor.decrypt(document.toString().getBytes(UTF_8)));
+        assertEquals("Decryption failed; Failed to locate crypto key 'IncorrectKid'", e.getMessage());
+    }
+}